@@ -0,0 +1,371 @@
+package jp.dai1741.android.database;
+
+import jp.dai1741.util.ContentTypeFilter;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.graphics.BitmapFactory;
+import android.media.ExifInterface;
+import android.media.MediaPlayer;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * 画像の幅・高さ、EXIFの撮影日時、動画の長さをSQLiteに保存する索引。
+ * <p>
+ * メタデータはファイルごとに1度だけ取り出し、パス・サイズ・更新日時と共に保存する。
+ * サイズか更新日時が変わったファイルだけを取り出し直す。
+ * {@link #comparator(File, Column)}はディレクトリ内の値を1回のクエリで読み込むので、
+ * ソートのたびにファイルを開かずに済む。
+ * </p>
+ *
+ * @author dai
+ */
+public class MediaMetadataIndex {
+
+    /**
+     * {@link #index(List, ExecutorService)}で1つのタスクにまとめるファイル数。
+     * SQLiteの変数の上限より小さくすること。
+     */
+    static final int BATCH_SIZE = 256;
+
+    /**
+     * 撮影日時のタグ。 {@code ExifInterface.TAG_DATETIME_ORIGINAL}はAPI level 24からなので文字列で持つ
+     */
+    private static final String TAG_DATETIME_ORIGINAL = "DateTimeOriginal";
+
+    private static final String TABLE = "file_metadata";
+    private static final int VERSION = 1;
+    private static final String CREATE_STATEMENT = "CREATE TABLE " + TABLE
+            + " (path TEXT PRIMARY KEY, size INTEGER NOT NULL, modified INTEGER NOT NULL,"
+            + " width INTEGER, height INTEGER, taken INTEGER, duration INTEGER)";
+    private static final String INSERT_STATEMENT = "INSERT OR REPLACE INTO " + TABLE
+            + " (path, size, modified, width, height, taken, duration)"
+            + " VALUES (?, ?, ?, ?, ?, ?, ?)";
+
+    /**
+     * 索引に保存する値
+     */
+    public static enum Column {
+        WIDTH("width"), HEIGHT("height"),
+        /**
+         * 幅と高さの積
+         */
+        PIXELS("width * height"),
+        /**
+         * EXIFの撮影日時。 エポックからのミリ秒で、タイムゾーンは端末の設定とみなす
+         */
+        CAPTURE_DATE("taken"),
+        /**
+         * 動画の長さ。 ミリ秒
+         */
+        DURATION("duration");
+
+        final String expression;
+
+        private Column(String expression) {
+            this.expression = expression;
+        }
+    }
+
+    protected final SimpleSQLiteOpenHelper mHelper;
+    private final ContentTypeFilter mTypeFilter = ContentTypeFilter.media();
+
+    public MediaMetadataIndex(Context context, String name) {
+        mHelper = new SimpleSQLiteOpenHelper(context, name, null, VERSION, CREATE_STATEMENT);
+        mHelper.setOnCreateListener(new SimpleSQLiteOpenHelper.OnCreateListener() {
+            public void onCreate(SQLiteDatabase db) {
+                db.execSQL("CREATE INDEX " + TABLE + "_taken ON " + TABLE + " (taken)");
+            }
+        });
+    }
+
+    public void close() {
+        mHelper.close();
+    }
+
+    /**
+     * 索引にないか古くなったファイルのメタデータを取り出して保存する。
+     * ファイルを{@value #BATCH_SIZE}件ずつまとめて{@code executor}上で並列に取り出し、
+     * まとめごとに1つのトランザクションで保存する。 完了するまでブロックするので、
+     * UIスレッドからは呼ばないこと。
+     *
+     * @param executor
+     *            完了後もシャットダウンしない
+     * @throws InterruptedException
+     *             完了を待っている間に割り込まれたとき
+     * @return 新たに取り出したファイル数
+     */
+    public int index(List<File> files, ExecutorService executor) throws InterruptedException {
+        final SQLiteDatabase db = mHelper.getWritableDatabase();
+        List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+        try {
+            for (int i = 0; i < files.size(); i += BATCH_SIZE) {
+                final List<File> batch = files.subList(i, Math.min(i + BATCH_SIZE, files
+                        .size()));
+                futures.add(executor.submit(new Callable<Integer>() {
+                    public Integer call() {
+                        return indexBatch(db, batch);
+                    }
+                }));
+            }
+
+            int ret = 0;
+            for (Future<Integer> future : futures) {
+                try {
+                    ret += future.get();
+                }
+                catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                    if (cause instanceof Error) throw (Error) cause;
+                    throw new IllegalStateException(cause);
+                }
+            }
+            return ret;
+        }
+        finally {
+            for (Future<Integer> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    private int indexBatch(SQLiteDatabase db, List<File> batch) {
+        Map<String, long[]> stored = queryStamps(db, batch);
+        SimpleDateFormat exifDateFormat = new SimpleDateFormat("yyyy:MM:dd HH:mm:ss");
+
+        List<Metadata> extracted = new ArrayList<Metadata>();
+        for (File file : batch) {
+            if (Thread.currentThread().isInterrupted()) break;
+            long size = file.length();
+            long modified = file.lastModified();
+            long[] stamp = stored.get(file.getPath());
+            if (stamp != null && stamp[0] == size && stamp[1] == modified) continue;
+            if (!file.isFile()) continue;
+            extracted.add(extract(file, size, modified, exifDateFormat));
+        }
+        if (extracted.isEmpty()) return 0;
+
+        db.beginTransaction();
+        try {
+            SQLiteStatement insert = db.compileStatement(INSERT_STATEMENT);
+            try {
+                for (Metadata metadata : extracted) {
+                    metadata.bindTo(insert);
+                    insert.executeInsert();
+                }
+            }
+            finally {
+                insert.close();
+            }
+            db.setTransactionSuccessful();
+        }
+        finally {
+            db.endTransaction();
+        }
+        return extracted.size();
+    }
+
+    /**
+     * @return パスごとのサイズと更新日時
+     */
+    private static Map<String, long[]> queryStamps(SQLiteDatabase db, List<File> files) {
+        StringBuilder sql = new StringBuilder("SELECT path, size, modified FROM " + TABLE
+                + " WHERE path IN (");
+        String[] args = new String[files.size()];
+        for (int i = 0; i < args.length; i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+            args[i] = files.get(i).getPath();
+        }
+        sql.append(')');
+
+        Map<String, long[]> ret = new HashMap<String, long[]>(args.length * 2);
+        Cursor cursor = db.rawQuery(sql.toString(), args);
+        try {
+            while (cursor.moveToNext()) {
+                ret.put(cursor.getString(0), new long[] { cursor.getLong(1),
+                        cursor.getLong(2) });
+            }
+        }
+        finally {
+            cursor.close();
+        }
+        return ret;
+    }
+
+    private Metadata extract(File file, long size, long modified,
+            SimpleDateFormat exifDateFormat) {
+        Metadata ret = new Metadata(file.getPath(), size, modified);
+        ContentTypeFilter.Type type = mTypeFilter.sniff(file);
+        if (type.isImage()) {
+            BitmapFactory.Options opts = new BitmapFactory.Options();
+            opts.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(file.getPath(), opts);
+            if (opts.outWidth > 0) {
+                ret.width = (long) opts.outWidth;
+                ret.height = (long) opts.outHeight;
+            }
+            if (type == ContentTypeFilter.Type.JPEG) {
+                ret.taken = readExifDate(file, exifDateFormat);
+            }
+        }
+        else if (type.isVideo()) {
+            ret.duration = readDuration(file);
+        }
+        return ret;
+    }
+
+    /**
+     * 撮影日時を読む。 {@link ExifInterface#TAG_DATETIME}は編集で書き換わる更新日時なので、
+     * 撮影日時がないときだけ使う。
+     */
+    private static Long readExifDate(File file, SimpleDateFormat exifDateFormat) {
+        try {
+            ExifInterface exif = new ExifInterface(file.getPath());
+            String value = exif.getAttribute(TAG_DATETIME_ORIGINAL);
+            if (value == null) value = exif.getAttribute(ExifInterface.TAG_DATETIME);
+            if (value == null) return null;
+            Date date = exifDateFormat.parse(value);
+            return date.getTime();
+        }
+        catch (IOException e) {
+            return null;
+        }
+        catch (ParseException e) {
+            return null;
+        }
+    }
+
+    /**
+     * API level 10未満には{@code MediaMetadataRetriever}がないので、{@link MediaPlayer}で準備だけして長さを得る。
+     */
+    private static Long readDuration(File file) {
+        MediaPlayer player = new MediaPlayer();
+        try {
+            player.setDataSource(file.getPath());
+            player.prepare();
+            int duration = player.getDuration();
+            return duration >= 0 ? Long.valueOf(duration) : null;
+        }
+        catch (IOException e) {
+            return null;
+        }
+        catch (RuntimeException e) {
+            // 対応していない形式ではIllegalStateExceptionなどが投げられる
+            return null;
+        }
+        finally {
+            player.release();
+        }
+    }
+
+    /**
+     * {@code dir}以下のファイルを{@code column}の値で比較する比較関数を返す。
+     * 値は作成時に主キーの範囲を指定した1回のクエリで読み込む。
+     * 索引にないファイルや値のないファイルは先頭に、値が等しければファイル名順に並ぶ。
+     * <p>
+     * {@code FileIterator}は比較関数ごとに並び順をキャッシュするので、同じインスタンスを使い回すこと。
+     * </p>
+     */
+    public Comparator<File> comparator(File dir, Column column) {
+        String prefix = dir.getPath() + File.separatorChar;
+        // 区切り文字の次の文字コードを上限にして、主キーの索引で範囲検索する
+        String upper = dir.getPath() + (char) (File.separatorChar + 1);
+        final HashMap<String, Long> values = new HashMap<String, Long>();
+        Cursor cursor = mHelper.getReadableDatabase().rawQuery(
+                "SELECT path, " + column.expression + " FROM " + TABLE
+                        + " WHERE path >= ? AND path < ?", new String[] { prefix, upper });
+        try {
+            while (cursor.moveToNext()) {
+                if (!cursor.isNull(1)) values.put(cursor.getString(0), cursor.getLong(1));
+            }
+        }
+        finally {
+            cursor.close();
+        }
+
+        return new Comparator<File>() {
+            public int compare(File file1, File file2) {
+                Long value1 = values.get(file1.getPath());
+                Long value2 = values.get(file2.getPath());
+                long key1 = value1 != null ? value1 : Long.MIN_VALUE;
+                long key2 = value2 != null ? value2 : Long.MIN_VALUE;
+                if (key1 != key2) return key1 < key2 ? -1 : 1;
+                return file1.getName().compareTo(file2.getName());
+            }
+        };
+    }
+
+    /**
+     * {@code dir}以下で{@code column}の値が{@code min}以上{@code max}未満のファイルを、
+     * 値の順に返す。
+     */
+    public List<File> query(File dir, Column column, long min, long max) {
+        String prefix = dir.getPath() + File.separatorChar;
+        String upper = dir.getPath() + (char) (File.separatorChar + 1);
+        List<File> ret = new ArrayList<File>();
+        // 式の値は型の変換をしないので、数値は文字列の引数にせず埋め込む
+        Cursor cursor = mHelper.getReadableDatabase().rawQuery(
+                "SELECT path FROM " + TABLE + " WHERE path >= ? AND path < ? AND "
+                        + column.expression + " >= " + min + " AND " + column.expression
+                        + " < " + max + " ORDER BY " + column.expression + ", path",
+                new String[] { prefix, upper });
+        try {
+            while (cursor.moveToNext()) {
+                ret.add(new File(cursor.getString(0)));
+            }
+        }
+        finally {
+            cursor.close();
+        }
+        return ret;
+    }
+
+    private static final class Metadata {
+        final String path;
+        final long size;
+        final long modified;
+        Long width;
+        Long height;
+        Long taken;
+        Long duration;
+
+        Metadata(String path, long size, long modified) {
+            this.path = path;
+            this.size = size;
+            this.modified = modified;
+        }
+
+        void bindTo(SQLiteStatement insert) {
+            insert.bindString(1, path);
+            insert.bindLong(2, size);
+            insert.bindLong(3, modified);
+            bindNullable(insert, 4, width);
+            bindNullable(insert, 5, height);
+            bindNullable(insert, 6, taken);
+            bindNullable(insert, 7, duration);
+        }
+
+        private static void bindNullable(SQLiteStatement statement, int index, Long value) {
+            if (value != null) statement.bindLong(index, value);
+            else statement.bindNull(index);
+        }
+    }
+
+}
@@ -0,0 +1,157 @@
+package jp.dai1741.android.os;
+
+import jp.dai1741.util.FileIterator;
+
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.File;
+import java.io.FileFilter;
+
+/**
+ * ディレクトリの変更を監視し、{@link FileIterator}に差分だけを反映する{@link FileObserver}。
+ * <p>
+ * ファイルの作成・削除・書き込み完了のたびに一覧を作り直すのではなく、
+ * {@link FileIterator#add(File)}と{@link FileIterator#remove(File)}で1件ずつ挿入・削除する。
+ * 書き込まれたファイルは{@link FileIterator#reposition(int)}で必要なときだけ移動する。
+ * カーソルは同じファイルを指し続ける。
+ * </p>
+ * <p>
+ * {@code FileIterator}はスレッドセーフでないので、変更はコンストラクタに渡した{@link Handler}
+ * のスレッドで適用され、リスナーもそのスレッドで呼ばれる。
+ * 監視を始めるには{@link #startWatching()}を呼ぶ。
+ * </p>
+ *
+ * @author dai
+ */
+public class FileIteratorObserver extends FileObserver {
+
+    private static final int EVENT_MASK = CREATE | MOVED_TO | DELETE | MOVED_FROM
+            | CLOSE_WRITE;
+
+    protected final FileIterator mIterator;
+    protected final File mDirectory;
+    protected final FileFilter mFilter;
+    protected final Handler mHandler;
+    protected OnFileChangedListener mOnFileChangedListener;
+
+    /**
+     * 変更をメインスレッドで適用する。
+     *
+     * @see #FileIteratorObserver(FileIterator, File, FileFilter, Handler)
+     */
+    public FileIteratorObserver(FileIterator iterator, File directory, FileFilter ff) {
+        this(iterator, directory, ff, new Handler(Looper.getMainLooper()));
+    }
+
+    /**
+     * @param iterator
+     *            {@code directory}内のファイルのイテレーター
+     * @param ff
+     *            作成・変更されたファイルに適用する。 null可
+     * @param handler
+     *            {@code iterator}を使うスレッドのハンドラー
+     */
+    public FileIteratorObserver(FileIterator iterator, File directory, FileFilter ff,
+            Handler handler) {
+        super(directory.getPath(), EVENT_MASK);
+        mIterator = iterator;
+        mDirectory = directory;
+        mFilter = ff;
+        mHandler = handler;
+    }
+
+    public void setOnFileChangedListener(OnFileChangedListener listener) {
+        mOnFileChangedListener = listener;
+    }
+
+    @Override
+    public void onEvent(final int event, String path) {
+        if (path == null) return;
+        final File file = new File(mDirectory, path);
+        mHandler.post(new Runnable() {
+            public void run() {
+                applyEvent(event & ALL_EVENTS, file);
+            }
+        });
+    }
+
+    /**
+     * ハンドラーのスレッドで呼ばれる。
+     */
+    protected void applyEvent(int event, File file) {
+        switch (event) {
+        case CREATE:
+        case MOVED_TO:
+            if (accept(file)) added(file, mIterator.add(file));
+            break;
+        case DELETE:
+        case MOVED_FROM:
+            removed(file, mIterator.remove(file));
+            break;
+        case CLOSE_WRITE:
+            if (accept(file)) written(file);
+            else removed(file, mIterator.remove(file));
+            break;
+        }
+    }
+
+    /**
+     * ソートキーが変わっているかもしれないので、位置が変わるときだけ移す。
+     */
+    private void written(File file) {
+        int from = mIterator.indexOf(file);
+        if (from < 0) {
+            added(file, mIterator.add(file));
+            return;
+        }
+        int to = mIterator.reposition(from);
+        if (to != from) {
+            removed(file, from);
+            added(file, to);
+        }
+        else if (mOnFileChangedListener != null) {
+            mOnFileChangedListener.onFileChanged(file, to);
+        }
+    }
+
+    private boolean accept(File file) {
+        return file.exists() && !file.isDirectory()
+                && (mFilter == null || mFilter.accept(file));
+    }
+
+    private void added(File file, int index) {
+        if (mOnFileChangedListener != null) mOnFileChangedListener.onFileAdded(file, index);
+    }
+
+    private void removed(File file, int index) {
+        if (index >= 0 && mOnFileChangedListener != null) {
+            mOnFileChangedListener.onFileRemoved(file, index);
+        }
+    }
+
+    public static interface OnFileChangedListener {
+        /**
+         * @param index
+         *            挿入された位置
+         */
+        void onFileAdded(File file, int index);
+
+        /**
+         * @param index
+         *            取り除かれる前の位置
+         */
+        void onFileRemoved(File file, int index);
+
+        /**
+         * 書き込まれたが、位置は変わらなかったときに呼ばれる。
+         * 位置が変わったときは{@link #onFileRemoved(File, int)}と{@link #onFileAdded(File, int)}が呼ばれる。
+         *
+         * @param index
+         *            ファイルの位置
+         */
+        void onFileChanged(File file, int index);
+    }
+
+}
@@ -0,0 +1,197 @@
+package jp.dai1741.util;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * 与えられた要素のうち、比較関数の順で先頭から{@code capacity}個だけを保持するヒープ。
+ * <p>
+ * 保持している中で最も後ろの要素を根に持つので、それより後ろの要素は1回の比較で捨てられる。
+ * n個の要素から先頭k個を選ぶのにO(n log k)で済み、全体をソートしたコピーを作らない。
+ * 順位が同じ要素は先に与えられたものを優先するので、安定ソートした先頭k個と同じ結果になる。
+ * </p>
+ * <p>
+ * {@link FileIterator.FileComparators}や{@link ComparatorChain}をそのまま使える。
+ * このクラスはスレッドセーフでない。
+ * </p>
+ *
+ * @author dai
+ */
+public final class BoundedHeap<T> {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final int mCapacity;
+    private final Comparator<? super T> mComparator;
+    /** 容量が大きくても最初から確保せず、必要に応じて伸ばす */
+    private Object[] mElements;
+    /** 要素が与えられた順番。 順位が同じ要素の比較に使う */
+    private long[] mSequences;
+    private int mSize;
+    private long mNextSequence;
+
+    /**
+     * @param comparator
+     *            null可。 nullなら自然順序
+     * @throws IllegalArgumentException
+     *             if {@code capacity} is negative
+     */
+    public BoundedHeap(int capacity, Comparator<? super T> comparator) {
+        if (capacity < 0) throw new IllegalArgumentException("invalid capacity: " + capacity);
+        mCapacity = capacity;
+        mComparator = comparator;
+        mElements = new Object[Math.min(capacity, INITIAL_CAPACITY)];
+        mSequences = new long[mElements.length];
+    }
+
+    /**
+     * 比較関数の順で先頭から{@code k}個の要素を、その順に返す。
+     *
+     * @param comparator
+     *            null可。 nullなら自然順序
+     */
+    public static <T> List<T> topK(Iterable<? extends T> elements, int k,
+            Comparator<? super T> comparator) {
+        BoundedHeap<T> heap = new BoundedHeap<T>(k, comparator);
+        for (T element : elements) {
+            heap.offer(element);
+        }
+        return heap.toSortedList();
+    }
+
+    /**
+     * 全体をソートしたときの{@code offset}番目から{@code limit}個の要素を返す。
+     * 先頭{@code offset + limit}個だけを選んでから切り出すので、先頭に近いページほど速い。
+     *
+     * @param comparator
+     *            null可。 nullなら自然順序
+     */
+    public static <T> List<T> page(Iterable<? extends T> elements, int offset, int limit,
+            Comparator<? super T> comparator) {
+        if (offset < 0) throw new IllegalArgumentException("invalid offset: " + offset);
+        if (limit < 0) throw new IllegalArgumentException("invalid limit: " + limit);
+        List<T> top = topK(elements, (int) Math.min((long) offset + limit, Integer.MAX_VALUE),
+                comparator);
+        if (offset >= top.size()) return new ArrayList<T>(0);
+        return new ArrayList<T>(top.subList(offset, top.size()));
+    }
+
+    /**
+     * 要素を与える。
+     *
+     * @return 要素を保持したか。 すでに{@code capacity}個の要素が先にあれば保持せずfalse
+     */
+    public boolean offer(T element) {
+        long sequence = mNextSequence++;
+        if (mSize < mCapacity) {
+            if (mSize == mElements.length) grow();
+            siftUp(mSize++, element, sequence);
+            return true;
+        }
+        if (mSize == 0 || compare(element, sequence, 0) >= 0) return false;
+        siftDown(0, element, sequence);
+        return true;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * @return 保持している中で最も後ろの要素。 空ならnull
+     */
+    @SuppressWarnings("unchecked")
+    public T peekLast() {
+        return mSize > 0 ? (T) mElements[0] : null;
+    }
+
+    /**
+     * @return 保持している要素を比較関数の順に並べた新しいリスト
+     */
+    @SuppressWarnings("unchecked")
+    public List<T> toSortedList() {
+        int[] perm = IndexSorter.identity(mSize);
+        IndexSorter.sort(perm, new IndexSorter.IndexComparator() {
+            public int compare(int index1, int index2) {
+                return BoundedHeap.this.compare((T) mElements[index1], mSequences[index1],
+                        index2);
+            }
+        });
+        List<T> ret = new ArrayList<T>(mSize);
+        for (int index : perm) {
+            ret.add((T) mElements[index]);
+        }
+        return ret;
+    }
+
+    public void clear() {
+        for (int i = 0; i < mSize; i++) {
+            mElements[i] = null;
+        }
+        mSize = 0;
+    }
+
+    private void grow() {
+        int length = (int) Math.min(mElements.length * 2L + 1, mCapacity);
+        Object[] elements = new Object[length];
+        long[] sequences = new long[length];
+        System.arraycopy(mElements, 0, elements, 0, mSize);
+        System.arraycopy(mSequences, 0, sequences, 0, mSize);
+        mElements = elements;
+        mSequences = sequences;
+    }
+
+    /**
+     * 根に最も後ろの要素が来るように、{@code index}から親へ向かって{@code element}の位置を探す。
+     */
+    private void siftUp(int index, T element, long sequence) {
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (compare(element, sequence, parent) <= 0) break;
+            mElements[index] = mElements[parent];
+            mSequences[index] = mSequences[parent];
+            index = parent;
+        }
+        mElements[index] = element;
+        mSequences[index] = sequence;
+    }
+
+    private void siftDown(int index, T element, long sequence) {
+        int half = mSize >>> 1;
+        while (index < half) {
+            int child = 2 * index + 1;
+            int right = child + 1;
+            if (right < mSize && compareAt(right, child) > 0) child = right;
+            if (compare(element, sequence, child) >= 0) break;
+            mElements[index] = mElements[child];
+            mSequences[index] = mSequences[child];
+            index = child;
+        }
+        mElements[index] = element;
+        mSequences[index] = sequence;
+    }
+
+    @SuppressWarnings("unchecked")
+    private int compareAt(int index1, int index2) {
+        return compare((T) mElements[index1], mSequences[index1], index2);
+    }
+
+    /**
+     * {@code element}と{@code index}番目の要素を比較する。 順位が同じなら先に与えられたほうが前。
+     */
+    @SuppressWarnings("unchecked")
+    private int compare(T element, long sequence, int index) {
+        T other = (T) mElements[index];
+        int ret = mComparator != null ? mComparator.compare(element, other)
+                : ((Comparable<? super T>) element).compareTo(other);
+        if (ret != 0) return ret;
+        long otherSequence = mSequences[index];
+        return sequence < otherSequence ? -1 : sequence > otherSequence ? 1 : 0;
+    }
+
+}
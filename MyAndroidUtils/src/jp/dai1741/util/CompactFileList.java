@@ -0,0 +1,176 @@
+package jp.dai1741.util;
+
+import java.io.File;
+import java.util.AbstractList;
+import java.util.RandomAccess;
+
+/**
+ * 同じディレクトリ内のファイルを、親ディレクトリ1つとファイル名を詰め込んだ{@code char[]}で保持するリスト。
+ * <p>
+ * 要素ごとの{@code File}と親ディレクトリのパスを持たないため、大きなディレクトリでもメモリを食わない。
+ * {@code File}は{@link #get(int)}のたびに作られるので、要素の同一性は{@code equals}で判定すること。
+ * </p>
+ *
+ * @author dai
+ */
+final class CompactFileList extends AbstractList<File> implements RandomAccess {
+
+    private final File mParent;
+    private final String mParentPath;
+    private char[] mChars;
+    /** i番目のファイル名は{@code mChars[mOffsets[i]]}から{@code mChars[mOffsets[i+1]]}の手前まで */
+    private int[] mOffsets;
+    private int mSize;
+
+    CompactFileList(File parent, String[] names) {
+        mParent = parent;
+        mParentPath = parent.getPath();
+        int length = 0;
+        for (String name : names) {
+            length += name.length();
+        }
+        mChars = new char[length];
+        mOffsets = new int[names.length + 1];
+        for (String name : names) {
+            append(name);
+        }
+    }
+
+    /**
+     * 詰め込み済みのファイル名から作る。 配列はこのリストが所有する。
+     */
+    CompactFileList(File parent, char[] chars, int[] offsets, int size) {
+        mParent = parent;
+        mParentPath = parent.getPath();
+        mChars = chars;
+        mOffsets = offsets;
+        mSize = size;
+    }
+
+    @Override
+    public File get(int index) {
+        return new File(mParent, getName(index));
+    }
+
+    String getName(int index) {
+        if (index < 0 || mSize <= index) {
+            throw new IndexOutOfBoundsException("index: " + index);
+        }
+        return new String(mChars, mOffsets[index], mOffsets[index + 1] - mOffsets[index]);
+    }
+
+    /**
+     * {@code index}番目のファイル名と{@code name}を、{@link String#compareTo(String)}と同じ順序で比較する。
+     * 文字列を作らない。
+     */
+    int compareName(int index, String name) {
+        if (index < 0 || mSize <= index) {
+            throw new IndexOutOfBoundsException("index: " + index);
+        }
+        int from = mOffsets[index];
+        int length = mOffsets[index + 1] - from;
+        int n = Math.min(length, name.length());
+        for (int i = 0; i < n; i++) {
+            char c1 = mChars[from + i];
+            char c2 = name.charAt(i);
+            if (c1 != c2) return c1 - c2;
+        }
+        return length - name.length();
+    }
+
+    /**
+     * @return 添字同士をファイル名の{@link String#compareTo(String)}の順序で比較する比較関数。
+     *         文字列も{@code File}も作らない。 要素を追加・削除した後は使えない
+     */
+    IndexSorter.IndexComparator nameComparator() {
+        final char[] chars = mChars;
+        final int[] offsets = mOffsets;
+        return new IndexSorter.IndexComparator() {
+            public int compare(int index1, int index2) {
+                int from1 = offsets[index1];
+                int from2 = offsets[index2];
+                int length1 = offsets[index1 + 1] - from1;
+                int length2 = offsets[index2 + 1] - from2;
+                int n = Math.min(length1, length2);
+                for (int i = 0; i < n; i++) {
+                    char c1 = chars[from1 + i];
+                    char c2 = chars[from2 + i];
+                    if (c1 != c2) return c1 - c2;
+                }
+                return length1 - length2;
+            }
+        };
+    }
+
+    /**
+     * @return {@code file}がこのリストの親ディレクトリ直下にあるか
+     */
+    boolean isParentOf(File file) {
+        return mParentPath.equals(file.getParent());
+    }
+
+    /**
+     * @return 詰め込んだファイル名。 {@link #getOffsets()}の範囲のみ有効
+     */
+    char[] getChars() {
+        return mChars;
+    }
+
+    /**
+     * @return i番目のファイル名の開始位置。 {@code size() + 1}番目までが有効
+     */
+    int[] getOffsets() {
+        return mOffsets;
+    }
+
+    @Override
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * 末尾に追加する。 このリストの順序は{@link PermutedFileList}が持つので、位置は末尾に限る。
+     *
+     * @throws IllegalArgumentException
+     *             if {@code file} is not in the parent directory
+     */
+    @Override
+    public boolean add(File file) {
+        if (!mParentPath.equals(file.getParent())) throw new IllegalArgumentException(
+                "not in " + mParentPath + ": " + file);
+        append(file.getName());
+        modCount++;
+        return true;
+    }
+
+    @Override
+    public File remove(int index) {
+        File ret = get(index);
+        int from = mOffsets[index];
+        int length = mOffsets[index + 1] - from;
+        System.arraycopy(mChars, from + length, mChars, from, mOffsets[mSize] - from - length);
+        for (int i = index; i < mSize; i++) {
+            mOffsets[i] = mOffsets[i + 1] - length;
+        }
+        mSize--;
+        modCount++;
+        return ret;
+    }
+
+    private void append(String name) {
+        int end = mOffsets[mSize];
+        if (mSize + 2 > mOffsets.length) {
+            int[] offsets = new int[mOffsets.length * 2 + 2];
+            System.arraycopy(mOffsets, 0, offsets, 0, mSize + 1);
+            mOffsets = offsets;
+        }
+        if (end + name.length() > mChars.length) {
+            char[] chars = new char[Math.max(mChars.length * 2, end + name.length())];
+            System.arraycopy(mChars, 0, chars, 0, end);
+            mChars = chars;
+        }
+        name.getChars(0, name.length(), mChars, end);
+        mOffsets[++mSize] = end + name.length();
+    }
+
+}
@@ -0,0 +1,249 @@
+package jp.dai1741.util;
+
+import java.io.File;
+import java.util.AbstractList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 複数のスレッドから共有できる{@link FileIterator}。
+ * <p>
+ * 並び順とカーソルの位置を不変の{@link Snapshot}として公開する。 読み取り側は{@link #snapshot()}で得た
+ * スナップショットをロックなしで読み、その間に要素が削除・並べ替えされても影響を受けない。
+ * 書き込み側の操作は内部の{@code FileIterator}をロックして適用し、新しいスナップショットに差し替える。
+ * ファイル列のコピーは要素や並び順が変わったときだけ行い、カーソルの移動では元の配列を共有する。
+ * </p>
+ * <p>
+ * 例えばUIスレッドがカーソルを動かしながら、バックグラウンドのサムネイル読み込みスレッドが
+ * {@code snapshot()}の前後の要素を読むといった使い方を想定している。
+ * </p>
+ *
+ * @author dai
+ */
+public final class ConcurrentFileIterator {
+
+    /** 書き込み側のロックを兼ねる */
+    private final FileIterator mDelegate;
+    private final AtomicReference<Snapshot> mSnapshot = new AtomicReference<Snapshot>();
+
+    /**
+     * @param delegate
+     *            このインスタンスが所有する。 以降は直接操作してはならない
+     */
+    public ConcurrentFileIterator(FileIterator delegate) {
+        if (delegate == null) throw new NullPointerException("delegate must be specified");
+        mDelegate = delegate;
+        synchronized (mDelegate) {
+            publish(true);
+        }
+    }
+
+    /**
+     * ロックせずに現在のスナップショットを返す。
+     */
+    public Snapshot snapshot() {
+        return mSnapshot.get();
+    }
+
+    /**
+     * mDelegateをロックした状態で呼ぶこと。
+     *
+     * @param filesChanged
+     *            要素か並び順が変わったか。 falseならファイル列を前のスナップショットと共有する
+     */
+    private Snapshot publish(boolean filesChanged) {
+        Snapshot previous = mSnapshot.get();
+        Snapshot next;
+        if (filesChanged || previous == null) {
+            List<File> files = mDelegate.getFiles();
+            next = new Snapshot(files.toArray(new File[files.size()]), mDelegate
+                    .getComparator(), mDelegate.getCurrentIndex(), previous == null ? 0
+                    : previous.mVersion + 1);
+        }
+        else {
+            next = new Snapshot(previous.mFiles, previous.mComparator, mDelegate
+                    .getCurrentIndex(), previous.mVersion);
+        }
+        mSnapshot.set(next);
+        return next;
+    }
+
+    /**
+     * @see FileIterator#setComparator(Comparator)
+     */
+    public Snapshot setComparator(Comparator<File> comparator) {
+        synchronized (mDelegate) {
+            mDelegate.setComparator(comparator);
+            return publish(true);
+        }
+    }
+
+    /**
+     * @see FileIterator#setSortExecutor(ExecutorService)
+     */
+    public void setSortExecutor(ExecutorService executor) {
+        synchronized (mDelegate) {
+            mDelegate.setSortExecutor(executor);
+        }
+    }
+
+    /**
+     * @see FileIterator#add(File)
+     */
+    public int add(File file) {
+        synchronized (mDelegate) {
+            int size = mDelegate.size();
+            int ret = mDelegate.add(file);
+            publish(size != mDelegate.size());
+            return ret;
+        }
+    }
+
+    /**
+     * @see FileIterator#remove(File)
+     */
+    public int remove(File file) {
+        synchronized (mDelegate) {
+            int ret = mDelegate.remove(file);
+            if (ret >= 0) publish(true);
+            return ret;
+        }
+    }
+
+    /**
+     * 現在のファイルを取り除く。
+     *
+     * @throws IllegalStateException
+     *             このイテレーターが何も指していないとき
+     * @see FileIterator#remove()
+     */
+    public void removeCurrent() {
+        synchronized (mDelegate) {
+            mDelegate.remove();
+            publish(true);
+        }
+    }
+
+    /**
+     * @throws NoSuchElementException
+     *             次の要素がないとき
+     */
+    public File next() {
+        synchronized (mDelegate) {
+            File ret = mDelegate.next();
+            publish(false);
+            return ret;
+        }
+    }
+
+    /**
+     * @throws NoSuchElementException
+     *             前の要素がないとき
+     * @see FileIterator#previous()
+     */
+    public File previous() {
+        synchronized (mDelegate) {
+            File ret = mDelegate.previous();
+            publish(false);
+            return ret;
+        }
+    }
+
+    public void moveToFirst() {
+        synchronized (mDelegate) {
+            mDelegate.moveToFirst();
+            publish(false);
+        }
+    }
+
+    public void moveToLast() {
+        synchronized (mDelegate) {
+            mDelegate.moveToLast();
+            publish(false);
+        }
+    }
+
+    public void setCurrentIndex(int index) {
+        synchronized (mDelegate) {
+            mDelegate.setCurrentIndex(index);
+            publish(false);
+        }
+    }
+
+    /**
+     * @see FileIterator#seek(File)
+     */
+    public int seek(File key) {
+        synchronized (mDelegate) {
+            int ret = mDelegate.seek(key);
+            publish(false);
+            return ret;
+        }
+    }
+
+    /**
+     * ある時点の並び順とカーソルの位置。 不変なので、どのスレッドからもロックなしで読める。
+     */
+    public static final class Snapshot extends AbstractList<File> implements RandomAccess {
+        private final File[] mFiles;
+        private final Comparator<File> mComparator;
+        private final int mCurrentIndex;
+        private final long mVersion;
+
+        Snapshot(File[] files, Comparator<File> comparator, int currentIndex, long version) {
+            mFiles = files;
+            mComparator = comparator;
+            mCurrentIndex = currentIndex;
+            mVersion = version;
+        }
+
+        @Override
+        public File get(int index) {
+            if (index < 0 || mFiles.length <= index) {
+                throw new IndexOutOfBoundsException("index: " + index);
+            }
+            return mFiles[index];
+        }
+
+        @Override
+        public int size() {
+            return mFiles.length;
+        }
+
+        public Comparator<File> getComparator() {
+            return mComparator;
+        }
+
+        public int getCurrentIndex() {
+            return mCurrentIndex;
+        }
+
+        public boolean hasCurrent() {
+            return 0 <= mCurrentIndex && mCurrentIndex < mFiles.length;
+        }
+
+        /**
+         * @throws NoSuchElementException
+         *             if !this.hasCurrent()
+         */
+        public File current() {
+            if (!hasCurrent()) {
+                throw new NoSuchElementException("index: " + mCurrentIndex);
+            }
+            return mFiles[mCurrentIndex];
+        }
+
+        /**
+         * 要素か並び順が変わるたびに増える値。 カーソルの移動では変わらない。
+         * 読み込み済みの結果が古くなったかを調べるのに使う。
+         */
+        public long getVersion() {
+            return mVersion;
+        }
+    }
+
+}
@@ -0,0 +1,364 @@
+package jp.dai1741.util;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * ファイルの先頭のバイト列で種類を判定するフィルター。
+ * <p>
+ * 拡張子を見ないので、拡張子の誤ったファイルを除外し、拡張子のないファイルも判定できる。
+ * 読むのは先頭の{@value #HEADER_SIZE}バイトだけで、デコードはしない。
+ * 読み込みには使い回しのダイレクトバッファーを使う。
+ * </p>
+ * <p>
+ * 判定結果はパスごとに、サイズと更新日時が変わるまでキャッシュする。
+ * キャッシュは最近使った{@value #MAX_CACHE_SIZE}件までで、それを超えると最も古いものから捨てる。
+ * このクラスのインスタンスは複数のスレッドから使える。
+ * </p>
+ *
+ * @author dai
+ */
+public final class ContentTypeFilter implements FileFilter {
+
+    /**
+     * 判定に使う先頭のバイト数
+     */
+    public static final int HEADER_SIZE = 16;
+
+    /**
+     * {@link #filter(List, ExecutorService)}で1つのタスクにまとめるファイル数
+     */
+    static final int BATCH_SIZE = 64;
+
+    /**
+     * 判定結果をキャッシュするファイル数の上限
+     */
+    public static final int MAX_CACHE_SIZE = 4096;
+
+    private static final int MAX_POOLED_BUFFERS = 16;
+    private static final BlockingQueue<ByteBuffer> BUFFER_POOL = new ArrayBlockingQueue<ByteBuffer>(
+            MAX_POOLED_BUFFERS);
+
+    /**
+     * MP4の動画として扱うメジャーブランド
+     */
+    private static final String[] MP4_BRANDS = { "isom", "iso2", "iso3", "iso4", "iso5",
+            "iso6", "mp41", "mp42", "avc1", "M4V ", "M4VH", "M4VP", "dash", "mmp4", "MSNV" };
+
+    /**
+     * 判定できるファイルの種類
+     */
+    public static enum Type {
+        JPEG("image/jpeg"), PNG("image/png"), GIF("image/gif"), BMP("image/bmp"), WEBP(
+                "image/webp"), MP4("video/mp4"), THREE_GPP("video/3gpp"), QUICKTIME(
+                "video/quicktime"), AVI("video/x-msvideo"),
+        /**
+         * M4A、M4Bなど、MP4コンテナの音声
+         */
+        MP4_AUDIO("audio/mp4"),
+        /**
+         * WebMを含む
+         */
+        MATROSKA("video/x-matroska"), UNKNOWN(null);
+
+        private final String mMimeType;
+
+        private Type(String mimeType) {
+            mMimeType = mimeType;
+        }
+
+        /**
+         * @return MIMEタイプ。 {@link #UNKNOWN}ならnull
+         */
+        public String getMimeType() {
+            return mMimeType;
+        }
+
+        public boolean isImage() {
+            return mMimeType != null && mMimeType.startsWith("image/");
+        }
+
+        public boolean isVideo() {
+            return mMimeType != null && mMimeType.startsWith("video/");
+        }
+
+        public boolean isAudio() {
+            return mMimeType != null && mMimeType.startsWith("audio/");
+        }
+    }
+
+    private final EnumSet<Type> mAccepted;
+    /** アクセス順。 参照するときはこのインスタンスで同期する */
+    private final Map<String, Verdict> mCache = new LinkedHashMap<String, Verdict>(16, 0.75f,
+            true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Verdict> eldest) {
+            return size() > MAX_CACHE_SIZE;
+        }
+    };
+
+    /**
+     * @param accepted
+     *            受け付ける種類
+     */
+    public ContentTypeFilter(Type... accepted) {
+        mAccepted = EnumSet.noneOf(Type.class);
+        for (Type type : accepted) {
+            mAccepted.add(type);
+        }
+    }
+
+    /**
+     * @return 画像を受け付けるフィルター
+     */
+    public static ContentTypeFilter images() {
+        return new ContentTypeFilter(Type.JPEG, Type.PNG, Type.GIF, Type.BMP, Type.WEBP);
+    }
+
+    /**
+     * @return 動画を受け付けるフィルター
+     */
+    public static ContentTypeFilter videos() {
+        return new ContentTypeFilter(Type.MP4, Type.THREE_GPP, Type.QUICKTIME, Type.AVI,
+                Type.MATROSKA);
+    }
+
+    /**
+     * @return 画像と動画を受け付けるフィルター
+     */
+    public static ContentTypeFilter media() {
+        ContentTypeFilter ret = images();
+        ret.mAccepted.addAll(videos().mAccepted);
+        return ret;
+    }
+
+    public boolean accept(File pathname) {
+        return mAccepted.contains(sniff(pathname));
+    }
+
+    /**
+     * ファイルの種類を判定する。 サイズと更新日時が前回と同じならキャッシュした結果を返す。
+     *
+     * @return 読み込めないファイルやディレクトリなら{@link Type#UNKNOWN}
+     */
+    public Type sniff(File file) {
+        String path = file.getPath();
+        long size = file.length();
+        long modified = file.lastModified();
+        Verdict cached;
+        synchronized (mCache) {
+            cached = mCache.get(path);
+        }
+        if (cached != null && cached.size == size && cached.modified == modified) {
+            return cached.type;
+        }
+
+        Type type = size > 0 ? readType(file) : Type.UNKNOWN;
+        synchronized (mCache) {
+            mCache.put(path, new Verdict(size, modified, type));
+        }
+        return type;
+    }
+
+    public void clearCache() {
+        synchronized (mCache) {
+            mCache.clear();
+        }
+    }
+
+    /**
+     * 受け付けるファイルだけを、順序を保って返す。
+     * ファイルを{@value #BATCH_SIZE}件ずつまとめて{@code executor}上で並列に判定する。
+     *
+     * @param executor
+     *            null可。 nullなら呼び出したスレッドで判定する
+     * @throws InterruptedException
+     *             判定の完了を待っている間に割り込まれたとき
+     */
+    public List<File> filter(final List<File> files, ExecutorService executor)
+            throws InterruptedException {
+        final boolean[] accepted = new boolean[files.size()];
+        if (executor == null || files.size() <= BATCH_SIZE) {
+            acceptRange(files, accepted, 0, files.size());
+        }
+        else {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>(files.size()
+                    / BATCH_SIZE + 1);
+            try {
+                for (int i = 0; i < files.size(); i += BATCH_SIZE) {
+                    final int from = i;
+                    final int to = Math.min(i + BATCH_SIZE, files.size());
+                    futures.add(executor.submit(new Callable<Void>() {
+                        public Void call() {
+                            acceptRange(files, accepted, from, to);
+                            return null;
+                        }
+                    }));
+                }
+                for (Future<Void> future : futures) {
+                    try {
+                        future.get();
+                    }
+                    catch (ExecutionException e) {
+                        Throwable cause = e.getCause();
+                        if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                        if (cause instanceof Error) throw (Error) cause;
+                        throw new IllegalStateException(cause);
+                    }
+                }
+            }
+            finally {
+                for (Future<Void> future : futures) {
+                    future.cancel(true);
+                }
+            }
+        }
+
+        List<File> ret = new ArrayList<File>();
+        for (int i = 0; i < accepted.length; i++) {
+            if (accepted[i]) ret.add(files.get(i));
+        }
+        return ret;
+    }
+
+    private void acceptRange(List<File> files, boolean[] accepted, int from, int to) {
+        for (int i = from; i < to; i++) {
+            accepted[i] = accept(files.get(i));
+        }
+    }
+
+    /**
+     * ディレクトリ直下のファイルのうち、受け付けるものだけのイテレーターを返す。
+     * 拡張子によらず全てのファイルを判定する。
+     *
+     * @param executor
+     *            null可
+     * @throws IllegalArgumentException
+     *             if {@code dir} is not a directory
+     * @throws InterruptedException
+     *             判定の完了を待っている間に割り込まれたとき
+     * @see #filter(List, ExecutorService)
+     */
+    public FileIterator in(File dir, Comparator<File> comparator, ExecutorService executor)
+            throws InterruptedException {
+        if (!dir.isDirectory()) throw new IllegalArgumentException(
+                "given file doesn't represent a directory: " + dir);
+        File[] entries = dir.listFiles();
+        List<File> files = new ArrayList<File>(entries != null ? entries.length : 0);
+        if (entries != null) {
+            for (File entry : entries) {
+                files.add(entry);
+            }
+        }
+        return FileIterator.of(filter(files, executor), comparator);
+    }
+
+    private static Type readType(File file) {
+        ByteBuffer buf = BUFFER_POOL.poll();
+        if (buf == null) buf = ByteBuffer.allocateDirect(HEADER_SIZE);
+        try {
+            FileInputStream in = new FileInputStream(file);
+            try {
+                FileChannel channel = in.getChannel();
+                int read;
+                do {
+                    read = channel.read(buf, buf.position());
+                } while (read > 0 && buf.hasRemaining());
+            }
+            finally {
+                in.close();
+            }
+            buf.flip();
+            return detect(buf);
+        }
+        catch (IOException e) {
+            return Type.UNKNOWN;
+        }
+        finally {
+            buf.clear();
+            BUFFER_POOL.offer(buf);
+        }
+    }
+
+    /**
+     * @param header
+     *            ファイルの先頭。 位置は0
+     */
+    static Type detect(ByteBuffer header) {
+        int n = header.limit();
+        if (startsWith(header, 0, 0xFF, 0xD8, 0xFF)) return Type.JPEG;
+        if (startsWith(header, 0, 0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A)) return Type.PNG;
+        if (startsWith(header, 0, 'G', 'I', 'F', '8') && n >= 6
+                && (header.get(4) == '7' || header.get(4) == '9') && header.get(5) == 'a') {
+            return Type.GIF;
+        }
+        if (startsWith(header, 0, 'R', 'I', 'F', 'F')) {
+            if (startsWith(header, 8, 'W', 'E', 'B', 'P')) return Type.WEBP;
+            if (startsWith(header, 8, 'A', 'V', 'I', ' ')) return Type.AVI;
+            return Type.UNKNOWN;
+        }
+        if (startsWith(header, 4, 'f', 't', 'y', 'p')) return detectBrand(header);
+        if (startsWith(header, 0, 0x1A, 0x45, 0xDF, 0xA3)) return Type.MATROSKA;
+        if (startsWith(header, 0, 'B', 'M') && n >= 14) return Type.BMP;
+        return Type.UNKNOWN;
+    }
+
+    /**
+     * ISOメディアファイルのメジャーブランドで判定する。
+     * HEIF、AVIFなどの画像も同じ形式なので、知っているブランド以外は{@link Type#UNKNOWN}にする。
+     */
+    private static Type detectBrand(ByteBuffer header) {
+        if (header.limit() < 12) return Type.UNKNOWN;
+        char[] brand = new char[4];
+        for (int i = 0; i < brand.length; i++) {
+            brand[i] = (char) (header.get(8 + i) & 0xFF);
+        }
+        String major = new String(brand);
+        if (major.startsWith("3g")) return Type.THREE_GPP;
+        if (major.equals("qt  ")) return Type.QUICKTIME;
+        if (major.equals("M4A ") || major.equals("M4B ")) return Type.MP4_AUDIO;
+        for (String video : MP4_BRANDS) {
+            if (major.equals(video)) return Type.MP4;
+        }
+        return Type.UNKNOWN;
+    }
+
+    private static boolean startsWith(ByteBuffer buf, int offset, int... bytes) {
+        if (buf.limit() < offset + bytes.length) return false;
+        for (int i = 0; i < bytes.length; i++) {
+            if ((buf.get(offset + i) & 0xFF) != bytes[i]) return false;
+        }
+        return true;
+    }
+
+    private static final class Verdict {
+        final long size;
+        final long modified;
+        final Type type;
+
+        Verdict(long size, long modified, Type type) {
+            this.size = size;
+            this.modified = modified;
+            this.type = type;
+        }
+    }
+
+}
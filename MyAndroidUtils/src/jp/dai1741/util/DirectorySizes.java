@@ -0,0 +1,270 @@
+package jp.dai1741.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * ディレクトリ以下の合計サイズとファイル数を求め、ディレクトリごとにキャッシュする。
+ * <p>
+ * 各ディレクトリについて、直下のファイルの合計と子ディレクトリの一覧を更新日時と共に記録する。
+ * 2回目以降の走査では更新日時の変わったディレクトリだけを列挙し直し、
+ * それ以外は記録した値を使う。 走査した部分木の合計が変わると、キャッシュ済みの祖先の合計だけを更新する。
+ * {@link #getCached(File)}はディスクにアクセスしない。
+ * </p>
+ * <p>
+ * ディレクトリの更新日時は直下の要素の追加・削除・名前の変更でしか変わらないので、
+ * 既存のファイルの書き換えによるサイズの変化は、そのディレクトリを{@link #invalidate(File)}
+ * するまで反映されない。 シンボリックリンクのディレクトリは辿らない。
+ * このクラスのインスタンスは複数のスレッドから使える。
+ * </p>
+ *
+ * @author dai
+ */
+public final class DirectorySizes {
+
+    /**
+     * 合計サイズとファイル数
+     */
+    public static final class Summary {
+        private final long mSize;
+        private final int mFileCount;
+
+        Summary(long size, int fileCount) {
+            mSize = size;
+            mFileCount = fileCount;
+        }
+
+        /**
+         * @return 以下のファイルの合計バイト数
+         */
+        public long getSize() {
+            return mSize;
+        }
+
+        /**
+         * @return 以下のファイルの数。 ディレクトリは数えない
+         */
+        public int getFileCount() {
+            return mFileCount;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Entry> mEntries = new ConcurrentHashMap<String, Entry>();
+
+    /**
+     * @return 走査済みなら{@code dir}以下の合計、そうでなければnull
+     */
+    public Summary getCached(File dir) {
+        Entry entry = mEntries.get(dir.getPath());
+        return entry != null ? entry.total : null;
+    }
+
+    /**
+     * {@code dir}以下のキャッシュを破棄し、次の走査で列挙し直すようにする。
+     */
+    public void invalidate(File dir) {
+        String path = dir.getPath();
+        mEntries.remove(path);
+        removeDescendants(path);
+    }
+
+    /**
+     * 利用可能なプロセッサ数のスレッドを一時的に使って走査する。
+     *
+     * @see #scan(File, ExecutorService)
+     */
+    public Summary scan(File root) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime()
+                .availableProcessors());
+        try {
+            return scan(root, executor);
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * {@code root}以下を走査して合計を求める。 ディレクトリごとに{@code executor}上で並列に調べ、
+     * 前回から更新日時の変わっていないディレクトリは列挙しない。
+     * 合計はキャッシュ済みの祖先にも反映する。
+     *
+     * @param executor
+     *            走査に使うスレッドプール。 走査の完了後もシャットダウンしない
+     * @throws IllegalArgumentException
+     *             if {@code root} is not a directory
+     * @throws java.util.concurrent.RejectedExecutionException
+     *             {@code executor}がタスクを拒否したとき
+     * @throws InterruptedException
+     *             走査の完了を待っている間に割り込まれたとき
+     * @return {@code root}以下の合計
+     */
+    public Summary scan(File root, ExecutorService executor) throws InterruptedException {
+        if (!root.isDirectory()) throw new IllegalArgumentException(
+                "given file doesn't represent a directory: " + root);
+
+        List<String> visited = new Scan(executor).run(root);
+
+        // 子のパスは親より長いので、長い順に集計すれば子の合計が先に求まる
+        Collections.sort(visited, new Comparator<String>() {
+            public int compare(String object1, String object2) {
+                return object2.length() - object1.length();
+            }
+        });
+        for (String path : visited) {
+            aggregate(path);
+        }
+
+        for (File parent = root.getParentFile(); parent != null; parent = parent
+                .getParentFile()) {
+            if (aggregate(parent.getPath()) == null) break;
+        }
+        return getCached(root);
+    }
+
+    /**
+     * 直下のファイルの合計と子ディレクトリの合計から、{@code path}以下の合計を求め直す。
+     *
+     * @return {@code path}のエントリ。 キャッシュになければnull
+     */
+    private Entry aggregate(String path) {
+        Entry entry = mEntries.get(path);
+        if (entry == null) return null;
+        long size = entry.ownSize;
+        int count = entry.ownCount;
+        for (String child : entry.children) {
+            Entry childEntry = mEntries.get(child);
+            if (childEntry != null && childEntry.total != null) {
+                size += childEntry.total.mSize;
+                count += childEntry.total.mFileCount;
+            }
+        }
+        entry.total = new Summary(size, count);
+        return entry;
+    }
+
+    private void removeDescendants(String path) {
+        String prefix = path + File.separatorChar;
+        for (Iterator<String> it = mEntries.keySet().iterator(); it.hasNext();) {
+            if (it.next().startsWith(prefix)) it.remove();
+        }
+    }
+
+    /**
+     * 1回の走査。 ディレクトリごとのタスクは子ディレクトリのタスクを投入するだけで完了を待たない。
+     *
+     * @see PendingTasks
+     */
+    private final class Scan {
+        private final List<String> mVisited = Collections
+                .synchronizedList(new ArrayList<String>());
+        private final PendingTasks mPendingTasks;
+
+        Scan(ExecutorService executor) {
+            mPendingTasks = new PendingTasks(executor);
+        }
+
+        /**
+         * @return 走査したディレクトリのパス
+         */
+        List<String> run(File root) throws InterruptedException {
+            submit(root);
+            mPendingTasks.await();
+            return new ArrayList<String>(mVisited);
+        }
+
+        private void submit(final File dir) {
+            mPendingTasks.submit(new Runnable() {
+                public void run() {
+                    visit(dir);
+                }
+            });
+        }
+
+        private void visit(File dir) {
+            String path = dir.getPath();
+            mVisited.add(path);
+            long modified = dir.lastModified();
+            Entry entry = mEntries.get(path);
+            if (entry == null || entry.modified != modified) {
+                Entry old = entry;
+                entry = list(dir, modified);
+                mEntries.put(path, entry);
+                if (old != null) removeVanishedChildren(old, entry);
+            }
+            for (String child : entry.children) {
+                submit(new File(child));
+            }
+        }
+
+        private Entry list(File dir, long modified) {
+            File[] files = dir.listFiles();
+            if (files == null) files = new File[0];
+            long size = 0;
+            int count = 0;
+            List<String> children = new ArrayList<String>();
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    if (!isSymbolicLink(file)) children.add(file.getPath());
+                }
+                else {
+                    size += file.length();
+                    count++;
+                }
+            }
+            return new Entry(modified, size, count, children.toArray(new String[children
+                    .size()]));
+        }
+
+        private void removeVanishedChildren(Entry old, Entry current) {
+            Set<String> children = new HashSet<String>(Arrays.asList(current.children));
+            for (String child : old.children) {
+                if (!children.contains(child)) {
+                    mEntries.remove(child);
+                    removeDescendants(child);
+                }
+            }
+        }
+    }
+
+    private static boolean isSymbolicLink(File dir) {
+        try {
+            File parent = dir.getParentFile().getCanonicalFile();
+            return !new File(parent, dir.getName()).getCanonicalPath().equals(
+                    new File(parent, dir.getName()).getAbsolutePath());
+        }
+        catch (IOException e) {
+            return true;
+        }
+    }
+
+    private static final class Entry {
+        final long modified;
+        /** 直下のファイルの合計 */
+        final long ownSize;
+        final int ownCount;
+        /** 子ディレクトリのパス */
+        final String[] children;
+        /** 以下全体の合計。 集計するまでnull */
+        volatile Summary total;
+
+        Entry(long modified, long ownSize, int ownCount, String[] children) {
+            this.modified = modified;
+            this.ownSize = ownSize;
+            this.ownCount = ownCount;
+            this.children = children;
+        }
+    }
+
+}
@@ -0,0 +1,251 @@
+package jp.dai1741.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * 内容が同一のファイルを探す。
+ * <p>
+ * 次の段階で候補を絞り込むので、ほとんどのファイルは全体を読まずに除外される。
+ * </p>
+ * <ol>
+ * <li>サイズが同じファイルごとにまとめる。 ファイル属性を見るだけで読み込まない</li>
+ * <li>サイズが衝突したファイルの先頭と末尾{@value #PARTIAL_SIZE}バイトずつのハッシュ値でまとめる</li>
+ * <li>それでも衝突したファイルだけ全体のハッシュ値でまとめる</li>
+ * </ol>
+ * <p>
+ * ハッシュ値の計算はファイルごとにスレッドプール上で並列に行い、
+ * 読み込みにはメモリマップした{@link FileChannel}を使う。 読み込めなかったファイルは結果に含めない。
+ * </p>
+ *
+ * @author dai
+ */
+public final class DuplicateFinder {
+
+    /**
+     * 2段階目で先頭と末尾から読むバイト数
+     */
+    public static final int PARTIAL_SIZE = 64 * 1024;
+
+    /**
+     * 全体のハッシュ値を計算するとき、一度にマップするバイト数
+     */
+    private static final int MAP_CHUNK_SIZE = 4 * 1024 * 1024;
+
+    private static final String DIGEST_ALGORITHM = "SHA-1";
+
+    private DuplicateFinder() {
+    }
+
+    /**
+     * @see #find(List, ExecutorService)
+     */
+    public static List<List<File>> find(FileIterator it, ExecutorService executor)
+            throws InterruptedException {
+        return find(Collections.singletonList(it), executor);
+    }
+
+    /**
+     * 重複を探す。 ハッシュ値の計算には利用可能なプロセッサ数のスレッドを一時的に使う。
+     *
+     * @see #find(List, ExecutorService)
+     */
+    public static List<List<File>> find(List<FileIterator> iterators)
+            throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime()
+                .availableProcessors());
+        try {
+            return find(iterators, executor);
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * イテレーターに含まれるファイルから、内容が同一のファイルの組を探す。
+     * 複数のイテレーターに含まれる同じファイルは1つとして扱う。
+     *
+     * @param executor
+     *            ハッシュ値の計算に使うスレッドプール。 完了後もシャットダウンしない
+     * @throws InterruptedException
+     *             計算の完了を待っている間に割り込まれたとき
+     * @return 同一のファイルの組のリスト。 各組は2つ以上のファイルからなり、
+     *         組と組内のファイルはイテレーターでの出現順に並ぶ
+     */
+    public static List<List<File>> find(List<FileIterator> iterators,
+            ExecutorService executor) throws InterruptedException {
+        Set<File> files = new LinkedHashSet<File>();
+        for (FileIterator it : iterators) {
+            files.addAll(it.getFiles());
+        }
+
+        Map<Long, List<File>> bySize = new LinkedHashMap<Long, List<File>>();
+        for (File file : files) {
+            if (!file.isFile()) continue;
+            Long size = file.length();
+            List<File> bucket = bySize.get(size);
+            if (bucket == null) {
+                bucket = new ArrayList<File>(2);
+                bySize.put(size, bucket);
+            }
+            bucket.add(file);
+        }
+
+        // 全ての候補の部分ハッシュ値をまとめて投入してから待つ。 2つずつの組が多くてもスレッドが遊ばない
+        List<List<File>> candidates = new ArrayList<List<File>>();
+        List<Long> candidateSizes = new ArrayList<Long>();
+        for (Map.Entry<Long, List<File>> entry : bySize.entrySet()) {
+            if (entry.getValue().size() >= 2 && entry.getKey() != 0) {
+                candidates.add(entry.getValue());
+                candidateSizes.add(entry.getKey());
+            }
+        }
+        List<List<List<File>>> partial = groupByDigest(candidates, false, executor);
+
+        // 先頭と末尾で全体を覆えるなら、部分ハッシュ値がそのまま全体のハッシュ値になる
+        List<List<File>> uncovered = new ArrayList<List<File>>();
+        for (int i = 0; i < candidates.size(); i++) {
+            if (candidateSizes.get(i) > 2L * PARTIAL_SIZE) {
+                uncovered.addAll(partial.get(i));
+            }
+        }
+        List<List<List<File>>> full = groupByDigest(uncovered, true, executor);
+
+        List<List<File>> ret = new ArrayList<List<File>>();
+        int candidate = 0;
+        int fullIndex = 0;
+        for (Map.Entry<Long, List<File>> entry : bySize.entrySet()) {
+            List<File> bucket = entry.getValue();
+            if (bucket.size() < 2) continue;
+            long size = entry.getKey();
+            if (size == 0) {
+                ret.add(bucket);
+                continue;
+            }
+            for (List<File> group : partial.get(candidate++)) {
+                if (size <= 2L * PARTIAL_SIZE) ret.add(group);
+                else ret.addAll(full.get(fullIndex++));
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * 全ての組の全てのファイルのハッシュ値の計算を投入してから、結果を待つ。
+     *
+     * @return 組ごとに、ハッシュ値が同じファイルの組のうち2つ以上のファイルからなるもの
+     */
+    private static List<List<List<File>>> groupByDigest(List<List<File>> buckets,
+            final boolean full, ExecutorService executor) throws InterruptedException {
+        List<Future<ByteBuffer>> futures = new ArrayList<Future<ByteBuffer>>();
+        try {
+            for (List<File> files : buckets) {
+                for (final File file : files) {
+                    futures.add(executor.submit(new Callable<ByteBuffer>() {
+                        public ByteBuffer call() throws IOException {
+                            return ByteBuffer.wrap(digest(file, full));
+                        }
+                    }));
+                }
+            }
+
+            List<List<List<File>>> ret = new ArrayList<List<List<File>>>(buckets.size());
+            int next = 0;
+            for (List<File> files : buckets) {
+                Map<ByteBuffer, List<File>> byDigest = new LinkedHashMap<ByteBuffer, List<File>>();
+                for (File file : files) {
+                    ByteBuffer digest;
+                    try {
+                        digest = futures.get(next++).get();
+                    }
+                    catch (ExecutionException e) {
+                        Throwable cause = e.getCause();
+                        if (cause instanceof IOException) continue;
+                        if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                        if (cause instanceof Error) throw (Error) cause;
+                        throw new IllegalStateException(cause);
+                    }
+                    List<File> group = byDigest.get(digest);
+                    if (group == null) {
+                        group = new ArrayList<File>(2);
+                        byDigest.put(digest, group);
+                    }
+                    group.add(file);
+                }
+
+                List<List<File>> groups = new ArrayList<List<File>>();
+                for (List<File> group : byDigest.values()) {
+                    if (group.size() >= 2) groups.add(group);
+                }
+                ret.add(groups);
+            }
+            return ret;
+        }
+        finally {
+            for (Future<ByteBuffer> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * @param full
+     *            falseなら先頭と末尾{@value #PARTIAL_SIZE}バイトずつだけ読む
+     */
+    static byte[] digest(File file, boolean full) throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance(DIGEST_ALGORITHM);
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            if (full || size <= 2L * PARTIAL_SIZE) {
+                update(md, channel, 0, size);
+            }
+            else {
+                update(md, channel, 0, PARTIAL_SIZE);
+                update(md, channel, size - PARTIAL_SIZE, PARTIAL_SIZE);
+            }
+        }
+        finally {
+            in.close();
+        }
+        return md.digest();
+    }
+
+    private static void update(MessageDigest md, FileChannel channel, long position,
+            long length) throws IOException {
+        long end = position + length;
+        for (long pos = position; pos < end; pos += MAP_CHUNK_SIZE) {
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(
+                    MAP_CHUNK_SIZE, end - pos));
+            md.update(buf);
+        }
+    }
+
+}
@@ -0,0 +1,451 @@
+package jp.dai1741.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * メモリに収まらないほど大きなディレクトリをイテレートするクラス。
+ * <p>
+ * 外部マージソートで一覧を作る。 ファイル名を{@code runSize}件ずつソートしてキャッシュディレクトリに書き出し、
+ * 書き出した列をマージして1つのソート済みファイルにする。
+ * 要素は必要になったときにファイルから一定件数ずつ読み込むので、
+ * 作成後のイテレートに使用するメモリはディレクトリ内のファイル数によらずほぼ一定。
+ * </p>
+ * <p>
+ * ただし、このAPIレベルにはディレクトリを少しずつ列挙する手段がなく、作成時には
+ * {@link File#list(FilenameFilter)}が全てのファイル名の配列を一度に作る。
+ * そのため作成中のメモリ使用量の最大値はファイル数に比例する。
+ * 比較関数を使ったソートと{@link File}オブジェクトの生成は{@code runSize}件ずつに限られる。
+ * </p>
+ * <p>
+ * {@link FileIterator}と同じカーソル操作を提供するが、要素の削除と比較関数の変更はできない。
+ * 使い終わったら{@link #close()}でキャッシュを削除すること。
+ * </p>
+ *
+ * @author dai
+ */
+public final class ExternalFileIterator implements Iterator<File>, Closeable {
+
+    /**
+     * 1つの列に含めるファイル数の既定値
+     */
+    public static final int DEFAULT_RUN_SIZE = 16 * 1024;
+
+    /**
+     * 一度に読み込んでおく要素数
+     */
+    public static final int DEFAULT_WINDOW_SIZE = 1024;
+
+    /**
+     * 一度にマージする列の数の上限。 これを超えると複数回に分けてマージする。
+     */
+    static final int MAX_FAN_IN = 32;
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private final File mDir;
+    private final File mDataFile;
+    private final File mIndexFile;
+    private final int mSize;
+    private RandomAccessFile mIndex;
+    private FileInputStream mData;
+
+    private final File[] mWindow;
+    private int mWindowStart;
+    private int mWindowLength;
+    private int mCurrentIndex = -1;
+
+    private ExternalFileIterator(File dir, File dataFile, File indexFile, int size,
+            int windowSize) throws IOException {
+        mDir = dir;
+        mDataFile = dataFile;
+        mIndexFile = indexFile;
+        mSize = size;
+        mWindow = new File[windowSize];
+        mIndex = new RandomAccessFile(indexFile, "r");
+        try {
+            mData = new FileInputStream(dataFile);
+        }
+        catch (IOException e) {
+            mIndex.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @see #in(File, FilenameFilter, Comparator, File, int, int)
+     */
+    public static ExternalFileIterator in(File dir, FilenameFilter filter,
+            Comparator<File> comparator, File cacheDir) throws IOException {
+        return in(dir, filter, comparator, cacheDir, DEFAULT_RUN_SIZE, DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * @param filter
+     *            null可
+     * @param comparator
+     *            null可
+     * @param cacheDir
+     *            一時ファイルを置くディレクトリ
+     * @param runSize
+     *            一度にメモリ上でソートするファイル数
+     * @param windowSize
+     *            一度に読み込んでおく要素数
+     * @throws IllegalArgumentException
+     *             if {@code dir} or {@code cacheDir} is not a directory, or
+     *             {@code runSize} or {@code windowSize} is not positive
+     * @throws IOException
+     *             一時ファイルの読み書きに失敗したとき
+     * @return このディレクトリ内のイテレーター
+     */
+    public static ExternalFileIterator in(File dir, FilenameFilter filter,
+            Comparator<File> comparator, File cacheDir, int runSize, int windowSize)
+            throws IOException {
+        if (!dir.isDirectory()) throw new IllegalArgumentException(
+                "given file doesn't represent a directory: " + dir);
+        if (!cacheDir.isDirectory()) throw new IllegalArgumentException(
+                "given file doesn't represent a directory: " + cacheDir);
+        if (runSize <= 0) throw new IllegalArgumentException("invalid run size: " + runSize);
+        if (windowSize <= 0) throw new IllegalArgumentException("invalid window size: "
+                + windowSize);
+
+        List<File> runs = new ArrayList<File>();
+        try {
+            int size = writeRuns(dir, filter, comparator, cacheDir, runSize, runs);
+            while (runs.size() > MAX_FAN_IN) {
+                List<File> merged = new ArrayList<File>();
+                try {
+                    for (int i = 0; i < runs.size(); i += MAX_FAN_IN) {
+                        List<File> group = runs.subList(i, Math.min(i + MAX_FAN_IN, runs
+                                .size()));
+                        File out = File.createTempFile("run", ".bin", cacheDir);
+                        merged.add(out);
+                        merge(dir, group, comparator, out, null, true);
+                        deleteAll(group);
+                    }
+                }
+                catch (IOException e) {
+                    deleteAll(merged);
+                    throw e;
+                }
+                runs = merged;
+            }
+
+            File data = File.createTempFile("sorted", ".bin", cacheDir);
+            File index = File.createTempFile("sorted", ".idx", cacheDir);
+            try {
+                merge(dir, runs, comparator, data, index, false);
+                return new ExternalFileIterator(dir, data, index, size, windowSize);
+            }
+            catch (IOException e) {
+                data.delete();
+                index.delete();
+                throw e;
+            }
+        }
+        finally {
+            deleteAll(runs);
+        }
+    }
+
+    /**
+     * ファイル名を{@code runSize}件ずつソートして書き出す。
+     * 列挙したファイル名の配列は書き出した分から捨てるが、最初は全件がメモリ上にある。
+     *
+     * @return ファイル数
+     */
+    private static int writeRuns(File dir, FilenameFilter filter, Comparator<File> comparator,
+            File cacheDir, int runSize, List<File> runs) throws IOException {
+        String[] names = dir.list(filter);
+        if (names == null) names = new String[0];
+
+        ArrayList<File> run = new ArrayList<File>(Math.min(runSize, names.length));
+        for (int i = 0; i < names.length; i++) {
+            run.add(new File(dir, names[i]));
+            names[i] = null;
+            if (run.size() >= runSize || i == names.length - 1) {
+                File out = File.createTempFile("run", ".bin", cacheDir);
+                runs.add(out);
+                writeRun(run, comparator, out);
+                run.clear();
+            }
+        }
+        return names.length;
+    }
+
+    /**
+     * サイズ順と日付順では、マージ時にファイルを調べずに済むよう、各ファイル名の後にソートキーを書く。
+     */
+    private static void writeRun(List<File> run, Comparator<File> comparator, File out)
+            throws IOException {
+        long[] keys = null;
+        if (isKeyed(comparator)) {
+            keys = new long[run.size()];
+            for (int i = 0; i < keys.length; i++) {
+                File file = run.get(i);
+                keys[i] = comparator == FileIterator.FileComparators.FILESIZE ? file.length()
+                        : file.lastModified();
+            }
+        }
+        int[] perm = keys != null ? IndexSorter.sortByKeys(keys) : PermutedFileList
+                .sortedPermutation(run, comparator, null);
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(out), BUFFER_SIZE));
+        try {
+            for (int index : perm) {
+                dos.writeUTF(run.get(index).getName());
+                if (keys != null) dos.writeLong(keys[index]);
+            }
+        }
+        finally {
+            dos.close();
+        }
+    }
+
+    /**
+     * @return 列にファイル名と一緒に{@code long}のソートキーを書く比較関数か
+     */
+    private static boolean isKeyed(Comparator<File> comparator) {
+        return comparator == FileIterator.FileComparators.FILESIZE
+                || comparator == FileIterator.FileComparators.DATE;
+    }
+
+    /**
+     * ソート済みの列をマージして{@code out}に書き出す。
+     *
+     * @param index
+     *            null可。 nullでなければ各要素の{@code out}内での位置を書き出す
+     * @param writeKeys
+     *            ソートキーのある列なら、{@code out}にもソートキーを書くか。 さらにマージする列ならtrue
+     */
+    private static void merge(File dir, List<File> runs, Comparator<File> comparator,
+            File out, File index, boolean writeKeys) throws IOException {
+        boolean keyed = isKeyed(comparator);
+        PriorityQueue<RunReader> heap = new PriorityQueue<RunReader>(Math.max(runs.size(), 1));
+        DataOutputStream dos = null;
+        DataOutputStream indexOut = null;
+        try {
+            for (int i = 0; i < runs.size(); i++) {
+                RunReader reader = new RunReader(dir, runs.get(i), i, comparator, keyed);
+                if (reader.advance()) heap.add(reader);
+                else reader.close();
+            }
+
+            dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(out),
+                    BUFFER_SIZE));
+            if (index != null) {
+                indexOut = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(index), BUFFER_SIZE));
+            }
+            while (!heap.isEmpty()) {
+                RunReader reader = heap.poll();
+                if (indexOut != null) indexOut.writeLong(dos.size());
+                dos.writeUTF(reader.name);
+                if (keyed && writeKeys) dos.writeLong(reader.key);
+                if (reader.advance()) heap.add(reader);
+                else reader.close();
+            }
+        }
+        finally {
+            for (RunReader reader : heap) {
+                reader.close();
+            }
+            if (dos != null) dos.close();
+            if (indexOut != null) indexOut.close();
+        }
+    }
+
+    private static void deleteAll(List<File> files) {
+        for (File file : files) {
+            file.delete();
+        }
+    }
+
+    /**
+     * 書き出した列を先頭から読む。
+     */
+    private static final class RunReader implements Comparable<RunReader> {
+        final File dir;
+        final int runIndex;
+        final Comparator<File> comparator;
+        /** ファイル名の後のソートキーで比較するか */
+        final boolean keyed;
+        final DataInputStream in;
+        String name;
+        long key;
+        File head;
+
+        /**
+         * @param keyed
+         *            各ファイル名の後にソートキーがある列か
+         */
+        RunReader(File dir, File run, int runIndex, Comparator<File> comparator,
+                boolean keyed) throws IOException {
+            this.dir = dir;
+            this.runIndex = runIndex;
+            this.comparator = comparator;
+            this.keyed = keyed;
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(run),
+                    BUFFER_SIZE));
+        }
+
+        boolean advance() throws IOException {
+            try {
+                name = in.readUTF();
+            }
+            catch (EOFException e) {
+                return false;
+            }
+            if (keyed) key = in.readLong();
+            else head = new File(dir, name);
+            return true;
+        }
+
+        void close() throws IOException {
+            in.close();
+        }
+
+        public int compareTo(RunReader another) {
+            int ret = keyed ? IndexSorter.compareLong(key, another.key)
+                    : FileIterator.compare(comparator, head, another.head);
+            return ret != 0 ? ret : runIndex - another.runIndex;
+        }
+    }
+
+    /**
+     * @return {@code index}番目のファイル
+     * @throws IllegalStateException
+     *             キャッシュの読み込みに失敗したとき
+     */
+    File get(int index) {
+        if (index < 0 || mSize <= index) {
+            throw new IndexOutOfBoundsException("index: " + index);
+        }
+        if (index < mWindowStart || mWindowStart + mWindowLength <= index) {
+            // 前後どちらに進んでもしばらく読み直さずに済むよう、少し手前から読む
+            loadWindow(Math.max(0, Math.min(index - mWindow.length / 4, mSize
+                    - mWindow.length)));
+        }
+        return mWindow[index - mWindowStart];
+    }
+
+    private void loadWindow(int start) {
+        if (mIndex == null) throw new IllegalStateException("already closed");
+        try {
+            mIndex.seek(start * 8L);
+            mData.getChannel().position(mIndex.readLong());
+            DataInputStream in = new DataInputStream(new BufferedInputStream(mData,
+                    BUFFER_SIZE));
+            int length = Math.min(mWindow.length, mSize - start);
+            for (int i = 0; i < length; i++) {
+                mWindow[i] = new File(mDir, in.readUTF());
+            }
+            mWindowStart = start;
+            mWindowLength = length;
+        }
+        catch (IOException e) {
+            mWindowLength = 0;
+            throw new IllegalStateException("failed to read cache: " + mDataFile, e);
+        }
+    }
+
+    public boolean hasNext() {
+        return mCurrentIndex + 1 < mSize;
+    }
+
+    public File next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException("index: " + (mCurrentIndex + 1));
+        }
+        return get(++mCurrentIndex);
+    }
+
+    public boolean hasPrevious() {
+        return mCurrentIndex > 0;
+    }
+
+    /**
+     * @see FileIterator#previous()
+     */
+    public File previous() {
+        if (!hasPrevious()) {
+            throw new NoSuchElementException("index: " + (mCurrentIndex - 1));
+        }
+        return get(--mCurrentIndex);
+    }
+
+    public boolean hasCurrent() {
+        return 0 <= mCurrentIndex && mCurrentIndex < mSize;
+    }
+
+    public File current() {
+        if (!hasCurrent()) {
+            throw new NoSuchElementException("index: " + mCurrentIndex);
+        }
+        return get(mCurrentIndex);
+    }
+
+    public void moveToFirst() {
+        mCurrentIndex = -1;
+    }
+
+    public void moveToLast() {
+        mCurrentIndex = mSize;
+    }
+
+    /**
+     * サポートしない。
+     *
+     * @throws UnsupportedOperationException
+     *             always
+     */
+    public void remove() {
+        throw new UnsupportedOperationException("remove");
+    }
+
+    public int getCurrentIndex() {
+        return mCurrentIndex;
+    }
+
+    public void setCurrentIndex(int index) {
+        mCurrentIndex = index;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * キャッシュファイルを閉じて削除する。
+     */
+    public void close() throws IOException {
+        if (mIndex == null) return;
+        try {
+            mIndex.close();
+            mData.close();
+        }
+        finally {
+            mIndex = null;
+            mData = null;
+            mDataFile.delete();
+            mIndexFile.delete();
+        }
+    }
+
+}
@@ -1,17 +1,22 @@
 package jp.dai1741.util;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileFilter;
+import java.io.FilenameFilter;
+import java.text.Collator;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
 import java.util.ListIterator;
 import java.util.NoSuchElementException;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * ファイル集合をイテレートするクラス。
@@ -21,21 +26,37 @@ import java.util.regex.Pattern;
  */
 public final class FileIterator implements Iterator<File> {
 
-    /* final */ArrayList<File> mFiles;
+    /* final */PermutedFileList mFiles;
     Comparator<File> mComparator;
     int mCurrentIndex = -1;
 
+    /** 最後に作ったセクション索引と、作ったときの区分と並び順 */
+    private FileSections mSections;
+    private FileSections.Sectioner mSectionsSectioner;
+    private int[] mSectionsOrder;
+
     protected FileIterator(ArrayList<File> files, Comparator<File> comparator) {
-        mFiles = files;
+        mFiles = new PermutedFileList(files);
         setComparatorWithFixedIndex(comparator);
     }
 
     protected FileIterator(ArrayList<File> files, File currentFile,
             Comparator<File> comparator) {
-        mFiles = files;
+        mFiles = new PermutedFileList(files);
         setComparator(comparator, currentFile);
     }
 
+    /**
+     * @param sorted
+     *            {@code files}がすでに{@code comparator}の順に並んでいるか
+     */
+    FileIterator(PermutedFileList files, Comparator<File> comparator, boolean sorted) {
+        mFiles = files;
+        mComparator = comparator;
+        if (sorted) mFiles.markSorted(comparator);
+        else mFiles.sortBy(comparator, -1);
+    }
+
 
     /**
      * 
@@ -54,8 +75,7 @@ public final class FileIterator implements Iterator<File> {
         if (!currentFile.isFile() || !dir.isDirectory()) throw new IllegalArgumentException(
                 "invalid file type: " + currentFile);
 
-        return new FileIterator(new ArrayList<File>(Arrays.asList(dir.listFiles(ff))),
-                currentFile, comparator);
+        return new FileIterator(listFiles(dir, ff), currentFile, comparator);
     }
 
 
@@ -77,8 +97,289 @@ public final class FileIterator implements Iterator<File> {
         if (!dir.isDirectory()) throw new IllegalArgumentException(
                 "given file doesn't represent a directory: " + dir);
 
-        return new FileIterator(new ArrayList<File>(Arrays.asList(dir.listFiles(ff))),
-                comparator);
+        return new FileIterator(listFiles(dir, ff), comparator);
+    }
+
+    /**
+     * {@code ff}が{@link NameFilter#asFileFilter()}なら、{@code File}を作る前に名前で判定する。
+     */
+    private static ArrayList<File> listFiles(File dir, FileFilter ff) {
+        NameFilter nameFilter = NameFilter.unwrap(ff);
+        if (nameFilter == null) {
+            return new ArrayList<File>(Arrays.asList(dir.listFiles(ff)));
+        }
+
+        String[] names = dir.list(nameFilter);
+        if (names == null) names = new String[0];
+        ArrayList<File> ret = new ArrayList<File>(names.length);
+        for (String name : names) {
+            ret.add(new File(dir, name));
+        }
+        return ret;
+    }
+
+    /**
+     * {@link #in(File, FileFilter, Comparator)}と同じだが、
+     * ファイルごとの{@code File}を持たず、ファイル名だけを詰め込んで保持する。
+     * 要素数の多いディレクトリでメモリ使用量を抑えたいときに使う。
+     * {@link #current()}などが返す{@code File}はその都度作られるので、
+     * 同じファイルかどうかは{@code equals}で判定すること。
+     * 
+     * @param filter
+     *            null可
+     * @throws IllegalArgumentException
+     *             if {@code dir} is not a directory
+     * @return このディレクトリ内のイテレーター
+     */
+    public static FileIterator inCompact(File dir, FilenameFilter filter,
+            Comparator<File> comparator) {
+        if (!dir.isDirectory()) throw new IllegalArgumentException(
+                "given file doesn't represent a directory: " + dir);
+
+        String[] names = dir.list(filter);
+        if (names == null) names = new String[0];
+        return new FileIterator(new PermutedFileList(new CompactFileList(dir, names)),
+                comparator, false);
+    }
+
+    /**
+     * {@link #inDirectoryOf(File, FileFilter, Comparator)}と同じだが、
+     * ファイルを{@code batchSize}件ずつ読み込み、読み込み済みのファイルのソート済みのビューを{@code listener}に逐次通知する。
+     * 全件の読み込みを待たずに先頭の画面を表示したいときに使う。
+     * バックグラウンドスレッドから呼ぶことを想定している。
+     * 
+     * @param listener
+     *            null可
+     * @throws IllegalArgumentException
+     *             if currentFile is not a file or not in a directory
+     * @return このファイルを含むディレクトリ内のイテレーター
+     * @see #inStreaming(File, FileFilter, Comparator, int, OnBatchLoadedListener)
+     */
+    public static FileIterator inDirectoryOfStreaming(File currentFile, FileFilter ff,
+            Comparator<File> comparator, int batchSize, OnBatchLoadedListener listener) {
+        File dir = new File(currentFile.getParent());
+        if (!currentFile.isFile() || !dir.isDirectory()) throw new IllegalArgumentException(
+                "invalid file type: " + currentFile);
+
+        FileIterator ret = new FileIterator(new PermutedFileList(listStreaming(dir, ff,
+                comparator, batchSize, listener)), comparator, true);
+        ret.ensurePosition(currentFile);
+        return ret;
+    }
+
+    /**
+     * {@link #in(File, FileFilter, Comparator)}と同じだが、
+     * ファイルを{@code batchSize}件ずつ読み込み、読み込み済みのファイルのソート済みのビューを{@code listener}に逐次通知する。
+     * バッチごとにソートした列を長さが揃うたびにマージしていくので、
+     * 全体を改めてソートすることはなく、バッチごとに全体をコピーすることもない。
+     * 
+     * @param batchSize
+     *            1以上
+     * @param listener
+     *            null可
+     * @throws IllegalArgumentException
+     *             if {@code dir} is not a directory or {@code batchSize} is not
+     *             positive
+     * @return このディレクトリ内のイテレーター
+     */
+    public static FileIterator inStreaming(File dir, FileFilter ff,
+            Comparator<File> comparator, int batchSize, OnBatchLoadedListener listener) {
+        if (!dir.isDirectory()) throw new IllegalArgumentException(
+                "given file doesn't represent a directory: " + dir);
+
+        return new FileIterator(new PermutedFileList(listStreaming(dir, ff, comparator,
+                batchSize, listener)), comparator, true);
+    }
+
+    /**
+     * ディレクトリ内の名前だけを先に取得し、{@code File}の生成とフィルタリングとソートをバッチ単位で行う。
+     * 
+     * @return {@code comparator}の順にソート済みのリスト
+     */
+    static ArrayList<File> listStreaming(File dir, FileFilter ff,
+            Comparator<File> comparator, int batchSize, OnBatchLoadedListener listener) {
+        if (batchSize <= 0) throw new IllegalArgumentException("invalid batch size: "
+                + batchSize);
+
+        NameFilter nameFilter = NameFilter.unwrap(ff);
+        String[] names = nameFilter != null ? dir.list(nameFilter) : dir.list();
+        if (names == null) names = new String[0];
+        if (nameFilter != null) ff = null;
+
+        List<ArrayList<File>> runs = new ArrayList<ArrayList<File>>();
+        ArrayList<File> batch = new ArrayList<File>(Math.min(batchSize, names.length));
+        for (int i = 0; i < names.length; i++) {
+            File file = new File(dir, names[i]);
+            names[i] = null;
+            if (ff != null && !ff.accept(file)) continue;
+            batch.add(file);
+
+            if (batch.size() >= batchSize) {
+                addRun(runs, batch, comparator, listener);
+                batch = new ArrayList<File>(Math.min(batchSize, names.length - i));
+            }
+        }
+        if (!batch.isEmpty()) addRun(runs, batch, comparator, listener);
+
+        // 残った列は後ろほど短いので、後ろから順にマージする
+        if (runs.isEmpty()) return new ArrayList<File>(0);
+        ArrayList<File> ret = runs.remove(runs.size() - 1);
+        while (!runs.isEmpty()) {
+            ret = mergeSorted(runs.remove(runs.size() - 1), ret, comparator);
+        }
+        return ret;
+    }
+
+    /**
+     * {@code batch}をソートして{@code runs}に加え、読み込み済みの全ての列をマージするビューを通知する。
+     * 末尾の列が1つ前の列以上の長さになる間は2つをマージするので、列の長さは前ほど長く、列の数はO(log n)に保たれる。
+     * 全体ではマージソートの上位の段と同じO(n log(n / batchSize))回の比較で済む。
+     * ビューは読まれた分だけマージするので、先頭の画面を表示するだけなら全体をマージしない。
+     */
+    private static void addRun(List<ArrayList<File>> runs, List<File> batch,
+            Comparator<File> comparator, OnBatchLoadedListener listener) {
+        int[] perm = PermutedFileList.sortedPermutation(batch, comparator, null);
+        ArrayList<File> sorted = new ArrayList<File>(perm.length);
+        for (int index : perm) {
+            sorted.add(batch.get(index));
+        }
+
+        ArrayList<File> run = sorted;
+        while (!runs.isEmpty() && runs.get(runs.size() - 1).size() <= run.size()) {
+            run = mergeSorted(runs.remove(runs.size() - 1), run, comparator);
+        }
+        runs.add(run);
+
+        if (listener != null) {
+            listener.onBatchLoaded(Collections.unmodifiableList(sorted), Collections
+                    .unmodifiableList(new MergingFileList(new ArrayList<List<File>>(runs),
+                            comparator)));
+        }
+    }
+
+    /**
+     * ソート済みの2つのリストをマージする。 同じ順位の要素は{@code a}のものが先になる。
+     */
+    static ArrayList<File> mergeSorted(List<File> a, List<File> b,
+            Comparator<File> comparator) {
+        ArrayList<File> ret = new ArrayList<File>(a.size() + b.size());
+        int i = 0, j = 0;
+        while (i < a.size() && j < b.size()) {
+            if (compare(comparator, b.get(j), a.get(i)) < 0) ret.add(b.get(j++));
+            else ret.add(a.get(i++));
+        }
+        while (i < a.size()) ret.add(a.get(i++));
+        while (j < b.size()) ret.add(b.get(j++));
+        return ret;
+    }
+
+    /**
+     * ソート済みの複数のリストをヒープでマージする。 同じ順位の要素は先のリストのものが先になる。
+     */
+    static ArrayList<File> mergeSortedRuns(List<? extends List<File>> runs,
+            final Comparator<File> comparator) {
+        int total = 0;
+        PriorityQueue<RunCursor> heap = new PriorityQueue<RunCursor>(Math.max(runs.size(), 1));
+        for (int i = 0; i < runs.size(); i++) {
+            List<File> run = runs.get(i);
+            total += run.size();
+            if (!run.isEmpty()) heap.add(new RunCursor(run, i, comparator));
+        }
+
+        ArrayList<File> ret = new ArrayList<File>(total);
+        while (!heap.isEmpty()) {
+            RunCursor cursor = heap.poll();
+            ret.add(cursor.head);
+            if (cursor.advance()) heap.add(cursor);
+        }
+        return ret;
+    }
+
+    /**
+     * マージ中の1つの列の先頭を指す。
+     */
+    static final class RunCursor implements Comparable<RunCursor> {
+        final List<File> run;
+        final int runIndex;
+        final Comparator<File> comparator;
+        int position;
+        File head;
+
+        RunCursor(List<File> run, int runIndex, Comparator<File> comparator) {
+            this.run = run;
+            this.runIndex = runIndex;
+            this.comparator = comparator;
+            head = run.get(0);
+        }
+
+        boolean advance() {
+            if (++position >= run.size()) return false;
+            head = run.get(position);
+            return true;
+        }
+
+        public int compareTo(RunCursor another) {
+            int ret = compare(comparator, head, another.head);
+            return ret != 0 ? ret : runIndex - another.runIndex;
+        }
+    }
+
+    /**
+     * {@code comparator}がnullなら自然順序で比較する。
+     */
+    static int compare(Comparator<File> comparator, File file1, File file2) {
+        return comparator != null ? comparator.compare(file1, file2) : file1
+                .compareTo(file2);
+    }
+
+    /**
+     * {@code root}以下のディレクトリ木を並列に走査したイテレーターを返す。
+     * 走査には利用可能なプロセッサ数のスレッドを一時的に使う。
+     * 
+     * @see #walk(File, FileFilter, Comparator, int, ExecutorService)
+     */
+    public static FileIterator walk(File root, FileFilter ff, Comparator<File> comparator,
+            int maxDepth) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime()
+                .availableProcessors());
+        try {
+            return walk(root, ff, comparator, maxDepth, executor);
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * {@code root}以下のディレクトリ木を走査したイテレーターを返す。
+     * サブディレクトリの列挙とソートはディレクトリごとに{@code executor}上で並列に行い、
+     * ソート済みの列をマージする。 ディレクトリ自体は要素に含まない。
+     * 
+     * @param ff
+     *            ディレクトリ以外のファイルに適用する。 null可
+     * @param maxDepth
+     *            {@code root}から何階層下まで降りるか。 0なら{@code root}の直下のみ
+     * @param executor
+     *            走査に使うスレッドプール。 走査の完了後もシャットダウンしない
+     * @throws IllegalArgumentException
+     *             if {@code root} is not a directory or {@code maxDepth} is
+     *             negative
+     * @throws java.util.concurrent.RejectedExecutionException
+     *             {@code executor}がタスクを拒否したとき
+     * @throws InterruptedException
+     *             走査の完了を待っている間に割り込まれたとき
+     * @return {@code root}以下のファイルのイテレーター
+     */
+    public static FileIterator walk(File root, FileFilter ff, Comparator<File> comparator,
+            int maxDepth, ExecutorService executor) throws InterruptedException {
+        if (!root.isDirectory()) throw new IllegalArgumentException(
+                "given file doesn't represent a directory: " + root);
+        if (maxDepth < 0) throw new IllegalArgumentException("invalid depth: " + maxDepth);
+
+        List<List<File>> runs = new ParallelFileWalker(ff, comparator, maxDepth, executor)
+                .walk(root);
+        return new FileIterator(new PermutedFileList(mergeSortedRuns(runs, comparator)),
+                comparator, true);
     }
 
     /**
@@ -95,6 +396,41 @@ public final class FileIterator implements Iterator<File> {
     }
 
 
+    /**
+     * それぞれ{@code comparator}の順にソート済みのイテレーターを1つにまとめる。
+     * 全体を再ソートせず、要素が必要になった分だけk個の列をヒープでマージするので、
+     * 全体でもO(n log k)で済む。 同じ順位の要素は先のイテレーターのものが先になる。
+     * 比較関数が{@code comparator}と異なるイテレーターだけは、その要素をソートしてからマージする。
+     * 
+     * @param comparator
+     *            null可
+     * @return 全ての要素を含む新しいイテレーター。 元のイテレーターとは独立している
+     */
+    public static FileIterator merge(List<FileIterator> iterators, Comparator<File> comparator) {
+        List<List<File>> runs = new ArrayList<List<File>>(iterators.size());
+        for (FileIterator it : iterators) {
+            List<File> run = Arrays.asList(it.mFiles.toArray(new File[it.size()]));
+            if (it.mComparator != comparator) Collections.sort(run, comparator);
+            runs.add(run);
+        }
+        return mergeLists(runs, comparator);
+    }
+
+    /**
+     * それぞれ{@code comparator}の順にソート済みのリストを1つにまとめる。
+     * 
+     * @param lists
+     *            要素が全て読み出されるまで変更してはならない
+     * @param comparator
+     *            null可
+     * @see #merge(List, Comparator)
+     */
+    public static FileIterator mergeLists(List<? extends List<File>> lists,
+            Comparator<File> comparator) {
+        return new FileIterator(new PermutedFileList(new MergingFileList(lists, comparator)),
+                comparator, true);
+    }
+
     public Comparator<File> getComparator() {
         return mComparator;
     }
@@ -108,11 +444,18 @@ public final class FileIterator implements Iterator<File> {
      * 比較関数をセットする。
      * 同時にソートもする。
      * 現在参照中のカーソルの位置を保持する。
+     * 一度使った比較関数に戻すときはソートせず、保存済みの並び順を使う。
      * 
      * @param comparator
      */
     public void setComparator(Comparator<File> comparator) {
-        setComparator(comparator, mCurrentIndex >= 0 ? mFiles.get(mCurrentIndex) : null);
+        if (!hasCurrent()) {
+            setComparator(comparator, null);
+            return;
+        }
+        mComparator = comparator;
+        mCurrentIndex = mFiles.sortBy(comparator, mCurrentIndex);
+        invalidateSections();
     }
 
     /**
@@ -134,12 +477,13 @@ public final class FileIterator implements Iterator<File> {
      *            nullなら先頭に、要素内にないなら適宜追加する
      */
     private void ensurePosition(File currentFile) {
-        Collections.sort(mFiles, mComparator);
+        mFiles.sortBy(mComparator, -1);
+        invalidateSections();
         if (currentFile == null) {
             mCurrentIndex = -1;
             return;
         }
-        mCurrentIndex = Collections.binarySearch(mFiles, currentFile, mComparator);
+        mCurrentIndex = binarySearch(currentFile);
 
         if (mCurrentIndex < 0) {
             mFiles.add(-mCurrentIndex - 1, currentFile);
@@ -149,7 +493,21 @@ public final class FileIterator implements Iterator<File> {
 
     public void setComparatorWithFixedIndex(Comparator<File> comparator) {
         mComparator = comparator;
-        Collections.sort(mFiles, mComparator);
+        mFiles.sortBy(comparator, -1);
+        invalidateSections();
+    }
+
+    /**
+     * 以降のソートに使うスレッドプールをセットする。
+     * 要素数が多いときは、ソートキーの取得とソートをこのプール上で並列に行う。
+     * {@link FileComparators}以外の比較関数は複数のスレッドから呼ばれることになる。
+     *
+     * @param executor
+     *            null可。 nullなら呼び出したスレッドだけでソートする。
+     *            このイテレーターを{@code executor}のタスクから操作してはならない
+     */
+    public void setSortExecutor(ExecutorService executor) {
+        mFiles.setSortExecutor(executor);
     }
 
     public boolean hasNext() {
@@ -231,6 +589,240 @@ public final class FileIterator implements Iterator<File> {
             throw new IllegalStateException("index: " + mCurrentIndex);
         }
         mFiles.remove(mCurrentIndex--);
+        invalidateSections();
+    }
+
+    /**
+     * ファイルをソート順を保つ位置に挿入する。
+     * 挿入位置は二分探索で求め、全体を再ソートしない。
+     * カーソルは同じファイルを指し続ける。
+     *
+     * @return 挿入した位置。すでに含まれていれば、その位置
+     */
+    public int add(File file) {
+        int index = binarySearch(file);
+        if (index >= 0) {
+            int found = indexOfEqual(file, index);
+            if (found >= 0) return found;
+        }
+        else {
+            index = -index - 1;
+        }
+
+        mFiles.add(index, file);
+        invalidateSections();
+        if (index <= mCurrentIndex) mCurrentIndex++;
+        return index;
+    }
+
+    /**
+     * ファイルを取り除く。
+     * カーソルは同じファイルを指し続ける。
+     * 現在のファイルを取り除いたときは{@link #remove()}と同じ位置に移動する。
+     *
+     * @return 取り除いた位置。含まれていなければ-1
+     */
+    public int remove(File file) {
+        int index = indexOf(file);
+        if (index < 0) return -1;
+
+        mFiles.remove(index);
+        invalidateSections();
+        if (index <= mCurrentIndex) mCurrentIndex--;
+        return index;
+    }
+
+    /**
+     * {@code index}番目のファイルのソートキーが変わったときに、ソート順を保つ位置へ移す。
+     * 前後の要素との順序が保たれていれば何もしない。
+     * カーソルは同じファイルを指し続ける。
+     *
+     * @return 移した後の位置
+     * @throws IndexOutOfBoundsException
+     *             if {@code index} is out of range
+     */
+    public int reposition(int index) {
+        File file = mFiles.get(index);
+        // 位置が変わらなくても、サイズや日付の区分は変わっているかもしれない
+        invalidateSections();
+        if ((index == 0 || compare(mComparator, mFiles.get(index - 1), file) <= 0)
+                && (index == mFiles.size() - 1 || compare(mComparator, file, mFiles
+                        .get(index + 1)) <= 0)) {
+            return index;
+        }
+
+        boolean current = index == mCurrentIndex;
+        mFiles.remove(index);
+        if (index < mCurrentIndex) mCurrentIndex--;
+
+        int to = binarySearch(file);
+        if (to < 0) to = -to - 1;
+        mFiles.add(to, file);
+        if (current) mCurrentIndex = to;
+        else if (to <= mCurrentIndex) mCurrentIndex++;
+        return to;
+    }
+
+    /**
+     * ファイルの位置を二分探索で探す。
+     * ファイルが削除・変更されていてソートキーが変わっている場合は線形探索になる。
+     *
+     * @return ファイルの位置。含まれていなければ-1
+     */
+    public int indexOf(File file) {
+        int index = binarySearch(file);
+        if (index >= 0) {
+            int found = indexOfEqual(file, index);
+            if (found >= 0) return found;
+        }
+        return mFiles.indexOf(file);
+    }
+
+    /**
+     * {@code index}の前後で比較関数が等しいとみなす範囲から{@code file}を探す。
+     */
+    private int indexOfEqual(File file, int index) {
+        for (int i = index; i >= 0 && compare(mComparator, mFiles.get(i), file) == 0; i--) {
+            if (file.equals(mFiles.get(i))) return i;
+        }
+        for (int i = index + 1; i < mFiles.size()
+                && compare(mComparator, mFiles.get(i), file) == 0; i++) {
+            if (file.equals(mFiles.get(i))) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * 比較関数の順で{@code key}以上となる最初の要素にカーソルを移動する。
+     * 二分探索で求めるので、要素数の対数時間で済む。
+     *
+     * @return 移動した位置。すべての要素が{@code key}より小さければ-1で、カーソルは動かさない
+     */
+    public int seek(File key) {
+        return moveTo(lowerBound(key));
+    }
+
+    /**
+     * ファイル名が{@code prefix}となるファイルが入るべき位置にカーソルを移動する。
+     * {@link FileComparators#FILENAME}などのファイル名順では、{@code prefix}から始まる最初の要素になる。
+     * {@link FileComparators#NATURAL_NUMERIC}と{@link FileComparators#COLLATED}では
+     * {@code prefix}から始まる要素が連続するとは限らないが、入力した文字に近い位置へ飛ぶのに使える。
+     *
+     * @throws IllegalStateException
+     *             比較関数がファイル名の順序でないとき
+     * @return 移動した位置。該当する位置がなければ-1で、カーソルは動かさない
+     */
+    public int seekPrefix(String prefix) {
+        if (mComparator != FileComparators.FILENAME && mComparator != FileComparators.NATURAL
+                && mComparator != FileComparators.NATURAL_NUMERIC
+                && mComparator != FileComparators.COLLATED) {
+            throw new IllegalStateException("not sorted by name: " + mComparator);
+        }
+        if (mFiles.isEmpty()) return -1;
+        // NATURALはパス全体で比較するので、同じディレクトリにあるものとして探す
+        return seek(new File(mFiles.get(0).getParentFile(), prefix));
+    }
+
+    /**
+     * {@link FileComparators#FILESIZE}ならサイズ、{@link FileComparators#DATE}なら更新日時が
+     * {@code key}以上となる最初の要素にカーソルを移動する。
+     *
+     * @throws IllegalStateException
+     *             比較関数がそのどちらでもないとき
+     * @return 移動した位置。該当する要素がなければ-1で、カーソルは動かさない
+     */
+    public int seek(long key) {
+        boolean bySize = mComparator == FileComparators.FILESIZE;
+        if (!bySize && mComparator != FileComparators.DATE) {
+            throw new IllegalStateException("not sorted by size or date: " + mComparator);
+        }
+        int lo = 0;
+        int hi = mFiles.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            File file = mFiles.get(mid);
+            long value = file == null ? Long.MIN_VALUE : bySize ? file.length() : file
+                    .lastModified();
+            if (value < key) lo = mid + 1;
+            else hi = mid;
+        }
+        return moveTo(lo);
+    }
+
+    private int lowerBound(File key) {
+        int lo = 0;
+        int hi = mFiles.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compareAt(mid, key) < 0) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * {@code Collections.binarySearch(mFiles, key, mComparator)}と同じ。
+     */
+    private int binarySearch(File key) {
+        int lo = 0;
+        int hi = mFiles.size() - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int ret = compareAt(mid, key);
+            if (ret < 0) lo = mid + 1;
+            else if (ret > 0) hi = mid - 1;
+            else return mid;
+        }
+        return -(lo + 1);
+    }
+
+    /**
+     * {@code index}番目の要素と{@code key}を比較する。
+     * ファイル名を詰め込んだリストをファイル名の順序で並べているときは、{@code File}を作らずに名前を比較する。
+     */
+    private int compareAt(int index, File key) {
+        List<File> source = mFiles.getSource();
+        if (source instanceof CompactFileList && key != null) {
+            CompactFileList compact = (CompactFileList) source;
+            if (mComparator == FileComparators.FILENAME || mComparator == FileComparators.NATURAL
+                    && compact.isParentOf(key)) {
+                return compact.compareName(mFiles.getSourceIndex(index), key.getName());
+            }
+        }
+        return compare(mComparator, mFiles.get(index), key);
+    }
+
+    private int moveTo(int index) {
+        if (index >= mFiles.size()) return -1;
+        mCurrentIndex = index;
+        return index;
+    }
+
+    /**
+     * 現在の並び順に対するセクション索引を返す。
+     * 索引は一覧を1度走査して作り、並び順が変わるか要素が追加・削除・移動されるまで使い回す。
+     *
+     * @param sectioner
+     *            {@link FileSections#FIRST_LETTER}など
+     * @see FileSections
+     */
+    public FileSections getSections(FileSections.Sectioner sectioner) {
+        int[] order = mFiles.getOrder();
+        if (mSections == null || mSectionsSectioner != sectioner || mSectionsOrder != order) {
+            mSections = FileSections.build(mFiles, sectioner);
+            mSectionsSectioner = sectioner;
+            mSectionsOrder = order;
+        }
+        return mSections;
+    }
+
+    /**
+     * 要素や並び順を変えたときに呼ぶ。
+     */
+    private void invalidateSections() {
+        mSections = null;
+        mSectionsSectioner = null;
+        mSectionsOrder = null;
     }
 
     public int getCurrentIndex() {
@@ -245,6 +837,23 @@ public final class FileIterator implements Iterator<File> {
         return mFiles.size();
     }
 
+    /**
+     * {@link FileIterator#inStreaming(File, FileFilter, Comparator, int, OnBatchLoadedListener)}
+     * の読み込み状況を受け取るリスナー。
+     */
+    public static interface OnBatchLoadedListener {
+        /**
+         * 読み込みを行ったスレッドから呼ばれる。
+         * 
+         * @param batch
+         *            今回読み込まれたファイル。比較関数の順にソート済み
+         * @param loaded
+         *            これまでに読み込まれた全てのファイルを比較関数の順に並べたビュー。
+         *            要素は読まれたときにマージされる。 呼び出しの後も使えるが、スレッドセーフでない
+         */
+        void onBatchLoaded(List<File> batch, List<File> loaded);
+    }
+
     /**
      * 比較順序集
      */
@@ -262,11 +871,56 @@ public final class FileIterator implements Iterator<File> {
                         .compareTo(file2.getName());
             }
         },
+        /**
+         * 拡張子順。 拡張子が同じならファイル名順。
+         */
         FILETYPE {
             public int compare(File file1, File file2) {
                 int ret = compareSimple(file1, file2);
-                return ret != AMBIGUOUS ? ret : getExtension(file1).compareTo(
-                        getExtension(file2));
+                if (ret != AMBIGUOUS) return ret;
+                String path1 = file1.getPath();
+                String path2 = file2.getPath();
+                ret = compareRegion(path1, extensionStart(path1), path2,
+                        extensionStart(path2));
+                return ret != 0 ? ret : compareRegion(path1, nameStart(path1), path2,
+                        nameStart(path2));
+            }
+
+            @Override
+            int[] sortedPermutation(final List<File> files, ExecutorService executor) {
+                final int n = files.size();
+                final String[] paths = new String[n];
+                final int[] nameStarts = new int[n];
+                final int[] extStarts = new int[n];
+                final long[] extKeys = new long[n];
+                IndexSorter.forEachRange(n, executor, new IndexSorter.RangeTask() {
+                    public void run(int from, int to) {
+                        for (int i = from; i < to; i++) {
+                            File file = files.get(i);
+                            if (file == null) {
+                                extKeys[i] = -1;
+                                continue;
+                            }
+                            paths[i] = file.getPath();
+                            nameStarts[i] = nameStart(paths[i]);
+                            extStarts[i] = extensionStart(paths[i]);
+                            extKeys[i] = packExtension(paths[i], extStarts[i]);
+                        }
+                    }
+                });
+
+                int[] perm = IndexSorter.identity(n);
+                IndexSorter.sort(perm, new IndexSorter.IndexComparator() {
+                    public int compare(int index1, int index2) {
+                        int ret = IndexSorter.compareLong(extKeys[index1], extKeys[index2]);
+                        if (ret != 0 || paths[index1] == null) return ret;
+                        ret = compareRegion(paths[index1], extStarts[index1],
+                                paths[index2], extStarts[index2]);
+                        return ret != 0 ? ret : compareRegion(paths[index1],
+                                nameStarts[index1], paths[index2], nameStarts[index2]);
+                    }
+                }, executor);
+                return perm;
             }
         },
         FILESIZE {
@@ -276,6 +930,20 @@ public final class FileIterator implements Iterator<File> {
                 long retl = file1.length() - file2.length();
                 return retl > 0 ? 1 : retl < 0 ? -1 : 0;
             }
+
+            @Override
+            int[] sortedPermutation(final List<File> files, ExecutorService executor) {
+                final long[] keys = new long[files.size()];
+                IndexSorter.forEachRange(keys.length, executor, new IndexSorter.RangeTask() {
+                    public void run(int from, int to) {
+                        for (int i = from; i < to; i++) {
+                            File file = files.get(i);
+                            keys[i] = file != null ? file.length() : Long.MIN_VALUE;
+                        }
+                    }
+                });
+                return IndexSorter.sortByKeys(keys, executor);
+            }
         },
         DATE {
             public int compare(File file1, File file2) {
@@ -284,14 +952,290 @@ public final class FileIterator implements Iterator<File> {
                 long retl = file1.lastModified() - file2.lastModified();
                 return retl > 0 ? 1 : retl < 0 ? -1 : 0;
             }
+
+            @Override
+            int[] sortedPermutation(final List<File> files, ExecutorService executor) {
+                final long[] keys = new long[files.size()];
+                IndexSorter.forEachRange(keys.length, executor, new IndexSorter.RangeTask() {
+                    public void run(int from, int to) {
+                        for (int i = from; i < to; i++) {
+                            File file = files.get(i);
+                            keys[i] = file != null ? file.lastModified() : Long.MIN_VALUE;
+                        }
+                    }
+                });
+                return IndexSorter.sortByKeys(keys, executor);
+            }
+        },
+        /**
+         * 数字の並びを数値として比較するファイル名順。 "img2"は"img10"より前になる。
+         * 数値として等しければ通常のファイル名順。
+         */
+        NATURAL_NUMERIC {
+            public int compare(File file1, File file2) {
+                int ret = compareSimple(file1, file2);
+                if (ret != AMBIGUOUS) return ret;
+                ret = compareNatural(file1.getName(), file2.getName());
+                return ret != 0 ? ret : file1.getName().compareTo(file2.getName());
+            }
+
+            @Override
+            int[] sortedPermutation(final List<File> files, ExecutorService executor) {
+                final byte[][] keys = new byte[files.size()][];
+                IndexSorter.forEachRange(keys.length, executor, new IndexSorter.RangeTask() {
+                    public void run(int from, int to) {
+                        for (int i = from; i < to; i++) {
+                            File file = files.get(i);
+                            if (file != null) keys[i] = naturalKey(file.getName());
+                        }
+                    }
+                });
+                return sortByByteKeys(files, keys, executor);
+            }
+        },
+        /**
+         * デフォルトロケールの{@link Collator}によるファイル名順。
+         * 照合順序で等しければ通常のファイル名順。
+         */
+        COLLATED {
+            public int compare(File file1, File file2) {
+                int ret = compareSimple(file1, file2);
+                if (ret != AMBIGUOUS) return ret;
+                Collator collator = collator();
+                synchronized (collator) {
+                    ret = collator.compare(file1.getName(), file2.getName());
+                }
+                return ret != 0 ? ret : file1.getName().compareTo(file2.getName());
+            }
+
+            @Override
+            int[] sortedPermutation(List<File> files, ExecutorService executor) {
+                byte[][] keys = new byte[files.size()][];
+                Collator collator = collator();
+                synchronized (collator) {
+                    for (int i = 0; i < keys.length; i++) {
+                        File file = files.get(i);
+                        if (file != null) {
+                            keys[i] = collator.getCollationKey(file.getName())
+                                    .toByteArray();
+                        }
+                    }
+                }
+                return sortByByteKeys(files, keys, executor);
+            }
         };
 
-        private static final Pattern EXTENSION_PATTERN = Pattern
-                .compile("\\.[a-zA-Z0-9]+$");
+        private static Collator sCollator;
+        private static Locale sCollatorLocale;
+
+        /**
+         * 現在のデフォルトロケールの{@link Collator}を返す。 ロケールが変わるまでは同じインスタンスを返す。
+         * {@code Collator}はスレッドセーフでないので、使うときはこのインスタンスで同期する。
+         * ロケールが変わっても、すでにソート済みの順列は並べ直さない。
+         */
+        private static synchronized Collator collator() {
+            Locale locale = Locale.getDefault();
+            if (sCollator == null || !locale.equals(sCollatorLocale)) {
+                sCollator = Collator.getInstance(locale);
+                sCollatorLocale = locale;
+            }
+            return sCollator;
+        }
+
+        /**
+         * バイト列のキーで比較し、等しければファイル名で比較する順列を返す。
+         * 
+         * @param keys
+         *            {@code files}の要素がnullなら対応するキーもnull
+         */
+        private static int[] sortByByteKeys(final List<File> files, final byte[][] keys,
+                ExecutorService executor) {
+            final String[] names = new String[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != null) names[i] = files.get(i).getName();
+            }
+            int[] perm = IndexSorter.identity(keys.length);
+            IndexSorter.sort(perm, new IndexSorter.IndexComparator() {
+                public int compare(int index1, int index2) {
+                    byte[] key1 = keys[index1];
+                    byte[] key2 = keys[index2];
+                    if (key1 == null || key2 == null) {
+                        return key1 == key2 ? 0 : key1 == null ? -1 : 1;
+                    }
+                    int ret = IndexSorter.compareBytes(key1, key2);
+                    return ret != 0 ? ret : names[index1].compareTo(names[index2]);
+                }
+            }, executor);
+            return perm;
+        }
+
+        /**
+         * {@link #naturalKey(String)}のキーを作らずに、キー同士の比較と同じ符号を返す。
+         */
+        static int compareNatural(String name1, String name2) {
+            int len1 = name1.length();
+            int len2 = name2.length();
+            int i = 0;
+            int j = 0;
+            while (i < len1 && j < len2) {
+                char c1 = name1.charAt(i);
+                char c2 = name2.charAt(j);
+                boolean digit1 = '0' <= c1 && c1 <= '9';
+                boolean digit2 = '0' <= c2 && c2 <= '9';
+                if (!digit1 && !digit2) {
+                    if (c1 != c2) return c1 - c2;
+                    i++;
+                    j++;
+                    continue;
+                }
+                // 数値は'0'の位置に並ぶ
+                if (!digit1) return c1 - '0';
+                if (!digit2) return '0' - c2;
+
+                while (i < len1 && name1.charAt(i) == '0') {
+                    i++;
+                }
+                while (j < len2 && name2.charAt(j) == '0') {
+                    j++;
+                }
+                int start1 = i;
+                int start2 = j;
+                while (i < len1 && '0' <= name1.charAt(i) && name1.charAt(i) <= '9') {
+                    i++;
+                }
+                while (j < len2 && '0' <= name2.charAt(j) && name2.charAt(j) <= '9') {
+                    j++;
+                }
+                int digits1 = Math.min(i - start1, 0xFFFF);
+                int digits2 = Math.min(j - start2, 0xFFFF);
+                if (digits1 != digits2) return digits1 - digits2;
+                for (int k = 0; k < digits1; k++) {
+                    int ret = name1.charAt(start1 + k) - name2.charAt(start2 + k);
+                    if (ret != 0) return ret;
+                }
+            }
+            return (i < len1 ? 1 : 0) - (j < len2 ? 1 : 0);
+        }
+
+        /**
+         * ソート用のキーを作る。 1回ずつの比較には{@link #compareNatural(String, String)}を使う。
+         * 数字以外の文字はUTF-16の2バイト、連続する数字は先頭の0を除いた桁数と各桁のバイト列にして、
+         * 符号なしの辞書順で比較すると数値を考慮したファイル名順になるキーを作る。
+         * 数値の前には'0'と同じ2バイトを置き、数値が'0'の位置に並ぶようにする。
+         */
+        static byte[] naturalKey(String name) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(name.length() * 2 + 4);
+            int len = name.length();
+            for (int i = 0; i < len;) {
+                char c = name.charAt(i);
+                if (c < '0' || '9' < c) {
+                    out.write(c >> 8);
+                    out.write(c);
+                    i++;
+                    continue;
+                }
+
+                while (i < len && name.charAt(i) == '0') {
+                    i++;
+                }
+                int start = i;
+                while (i < len && '0' <= name.charAt(i) && name.charAt(i) <= '9') {
+                    i++;
+                }
+                int digits = Math.min(i - start, 0xFFFF);
+                out.write(0);
+                out.write('0');
+                out.write(digits >> 8);
+                out.write(digits);
+                for (int j = start; j < start + digits; j++) {
+                    out.write(name.charAt(j));
+                }
+            }
+            return out.toByteArray();
+        }
 
-        private static String getExtension(File file) {
-            Matcher m = EXTENSION_PATTERN.matcher(file.getName());
-            return m.find() ? m.group() : "";
+        /**
+         * {@code files}をこの順序で安定ソートしたときの順列を返す。
+         * i番目の要素は、ソート後にi番目に来る要素の{@code files}内での添字。
+         * ファイル属性を比較ごとに取得しないよう、必要なら比較関数をオーバーライドする。
+         * 
+         * @param executor
+         *            null可。 与えられれば要素数の多いときにキーの取得とソートを並列に行う
+         */
+        int[] sortedPermutation(List<File> files, ExecutorService executor) {
+            int[] perm = IndexSorter.identity(files.size());
+            if (files instanceof CompactFileList && (this == FILENAME || this == NATURAL)) {
+                // 同じディレクトリ内ならパスの順序もファイル名の順序になる
+                IndexSorter.sort(perm, ((CompactFileList) files).nameComparator(), executor);
+                return perm;
+            }
+
+            // 要素ごとにFileを作るリストなら、比較のたびに作らないよう先に1度だけ作る
+            final List<File> list = files instanceof CompactFileList ? new ArrayList<File>(
+                    files) : files;
+            IndexSorter.sort(perm, new IndexSorter.IndexComparator() {
+                public int compare(int index1, int index2) {
+                    return FileComparators.this.compare(list.get(index1), list.get(index2));
+                }
+            }, executor);
+            return perm;
+        }
+
+        /**
+         * 拡張子として扱う英数字を何文字まで{@code long}に詰め込むか。 1文字7ビット。
+         */
+        private static final int PACKED_EXTENSION_LENGTH = 9;
+
+        /**
+         * {@code "\\.[a-zA-Z0-9]+$"}にマッチする拡張子の開始位置を後ろから走査して求める。
+         * 
+         * @return 拡張子の'.'の位置。拡張子がなければ{@code path.length()}
+         */
+        static int extensionStart(String path) {
+            int i = path.length() - 1;
+            while (i >= 0 && isAsciiAlphanumeric(path.charAt(i))) {
+                i--;
+            }
+            return i >= 0 && i < path.length() - 1 && path.charAt(i) == '.' ? i : path
+                    .length();
+        }
+
+        private static boolean isAsciiAlphanumeric(char c) {
+            return 'a' <= c && c <= 'z' || 'A' <= c && c <= 'Z' || '0' <= c && c <= '9';
+        }
+
+        static int nameStart(String path) {
+            return path.lastIndexOf(File.separatorChar) + 1;
+        }
+
+        /**
+         * '.'を除いた拡張子の先頭{@value #PACKED_EXTENSION_LENGTH}文字を、辞書順を保つように
+         * {@code long}に詰め込む。 拡張子がなければ0。
+         */
+        private static long packExtension(String path, int extStart) {
+            long ret = 0;
+            int pos = extStart + 1;
+            for (int i = 0; i < PACKED_EXTENSION_LENGTH; i++, pos++) {
+                ret <<= 7;
+                if (pos < path.length()) ret |= path.charAt(pos);
+            }
+            return ret;
+        }
+
+        /**
+         * {@code s1.substring(from1).compareTo(s2.substring(from2))}と同じ結果を、
+         * 部分文字列を作らずに返す。
+         */
+        static int compareRegion(String s1, int from1, String s2, int from2) {
+            int len1 = s1.length() - from1;
+            int len2 = s2.length() - from2;
+            int n = Math.min(len1, len2);
+            for (int i = 0; i < n; i++) {
+                char c1 = s1.charAt(from1 + i);
+                char c2 = s2.charAt(from2 + i);
+                if (c1 != c2) return c1 - c2;
+            }
+            return len1 - len2;
         }
 
         private static final int AMBIGUOUS = 8;
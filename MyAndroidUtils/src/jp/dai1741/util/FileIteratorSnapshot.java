@@ -0,0 +1,474 @@
+package jp.dai1741.util;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * {@link FileIterator}の一覧をバイナリファイルに保存し、次回起動時に再利用するクラス。
+ * <p>
+ * ファイル名、サイズ、更新日時と、使用済みの{@link FileIterator.FileComparators}ごとの並び順を保存する。
+ * 読み込みは{@link MappedByteBuffer}から配列へ一括で行い、ディレクトリの列挙もソートもしない。
+ * ディレクトリの更新日時が変わっていれば、追加・削除されたファイルだけを反映して保存し直す。
+ * 追加されたファイルは保存済みの並び順それぞれにマージするので、並び順は失われない。
+ * </p>
+ * <p>
+ * FAT系のファイルシステムでは更新日時の精度が粗く、一覧を作った直後の変更では日時が変わらないことがある。
+ * そのため一覧を作った時刻も保存し、ディレクトリの更新日時が一覧を作った時刻から
+ * {@value #MTIME_GRANULARITY}ミリ秒以内なら、日時が同じでも変更されているものとして扱う。
+ * </p>
+ * <p>
+ * ファイルの中身の変更ではディレクトリの更新日時は変わらないため、
+ * サイズ順・日付順の並びは保存時点のものになる。
+ * フィルターはスナップショットに保存されないので、フィルターごとに別のファイルを使うこと。
+ * </p>
+ *
+ * @author dai
+ */
+public final class FileIteratorSnapshot {
+
+    private static final int MAGIC = 0x4649534E; // "FISN"
+    private static final int VERSION = 2;
+
+    /**
+     * ディレクトリの更新日時の精度として見込むミリ秒数。 FATでは2秒
+     */
+    static final long MTIME_GRANULARITY = 2000;
+
+    private FileIteratorSnapshot() {
+    }
+
+    /**
+     * スナップショットからイテレーターを作る。
+     * スナップショットがない、壊れている、またはディレクトリが変更されているときは、
+     * ディレクトリを列挙してスナップショットを作り直す。
+     *
+     * @param filter
+     *            null可
+     * @param comparator
+     *            null可
+     * @param snapshotFile
+     *            スナップショットの保存先
+     * @throws IllegalArgumentException
+     *             if {@code dir} is not a directory
+     * @throws IOException
+     *             スナップショットを保存できなかったとき
+     * @return {@link FileIterator#inCompact(File, FilenameFilter, Comparator)}
+     *         と同じ要素を持つイテレーター
+     */
+    public static FileIterator open(File dir, FilenameFilter filter,
+            Comparator<File> comparator, File snapshotFile) throws IOException {
+        if (!dir.isDirectory()) throw new IllegalArgumentException(
+                "given file doesn't represent a directory: " + dir);
+
+        // 列挙より前に取得し、列挙中の変更は次回に反映されるようにする
+        long dirModified = dir.lastModified();
+        long listed = System.currentTimeMillis();
+        Snapshot snapshot = null;
+        try {
+            snapshot = read(dir, snapshotFile);
+        }
+        catch (IOException e) {
+            // 作り直す
+        }
+
+        FileIterator it;
+        if (snapshot == null) {
+            it = FileIterator.inCompact(dir, filter, comparator);
+        }
+        else if (snapshot.dirModified == dirModified
+                && snapshot.listed - dirModified > MTIME_GRANULARITY) {
+            return snapshot.toIterator(comparator);
+        }
+        else {
+            patch(dir, filter, snapshot);
+            it = snapshot.toIterator(comparator);
+            save(it, dir, dirModified, listed, snapshotFile, snapshot);
+            return it;
+        }
+        save(it, dir, dirModified, listed, snapshotFile, null);
+        return it;
+    }
+
+    /**
+     * イテレーターの要素と使用済みの並び順を保存する。
+     * イテレーターを作った時点の更新日時はわからないので、次に{@link #open}したときは一度だけ列挙し直す。
+     *
+     * @param it
+     *            {@code dir}直下のファイルのみを含むイテレーター
+     * @throws IllegalArgumentException
+     *             if {@code it} contains a file not in {@code dir}
+     */
+    public static void save(FileIterator it, File dir, File snapshotFile) throws IOException {
+        long dirModified = dir.lastModified();
+        save(it, dir, dirModified, dirModified, snapshotFile, null);
+    }
+
+    /**
+     * @param dirModified
+     *            列挙する前のディレクトリの更新日時
+     * @param listed
+     *            列挙を始めた時刻
+     * @param snapshot
+     *            null可。 {@code it}が{@link Snapshot#toIterator(Comparator)}で作られたものなら、
+     *            ファイルを調べずに保存済みのサイズと更新日時を使う
+     */
+    private static void save(FileIterator it, File dir, long dirModified, long listed,
+            File snapshotFile, Snapshot snapshot) throws IOException {
+        List<File> source = it.mFiles.getSource();
+        int count = source.size();
+        String[] names = new String[count];
+        long[] sizes = snapshot != null ? snapshot.trim(snapshot.sizes) : new long[count];
+        long[] modified = snapshot != null ? snapshot.trim(snapshot.modified) : new long[count];
+        int chars = 0;
+        for (int i = 0; i < count; i++) {
+            File file = source.get(i);
+            if (!dir.getPath().equals(file.getParent())) throw new IllegalArgumentException(
+                    "not in " + dir + ": " + file);
+            names[i] = file.getName();
+            if (snapshot == null) {
+                sizes[i] = file.length();
+                modified[i] = file.lastModified();
+            }
+            chars += names[i].length();
+        }
+
+        List<FileIterator.FileComparators> comparators = new ArrayList<FileIterator.FileComparators>();
+        int length = 4 * 4 + 8 + 8 + count * (8 + 8 + 4) + 4 + chars * 2 + 4;
+        for (FileIterator.FileComparators comparator : FileIterator.FileComparators.values()) {
+            if (it.mFiles.getCachedOrder(comparator) == null) continue;
+            comparators.add(comparator);
+            length += 4 + comparator.name().length() * 2 + count * 4;
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        buf.putInt(MAGIC).putInt(VERSION).putLong(dirModified).putLong(listed).putInt(count)
+                .putInt(chars);
+        buf.asLongBuffer().put(sizes);
+        buf.position(buf.position() + count * 8);
+        buf.asLongBuffer().put(modified);
+        buf.position(buf.position() + count * 8);
+        int offset = 0;
+        for (int i = 0; i < count; i++) {
+            buf.putInt(offset);
+            offset += names[i].length();
+        }
+        buf.putInt(offset);
+        for (String name : names) {
+            for (int i = 0; i < name.length(); i++) {
+                buf.putChar(name.charAt(i));
+            }
+        }
+        buf.putInt(comparators.size());
+        for (FileIterator.FileComparators comparator : comparators) {
+            String name = comparator.name();
+            buf.putInt(name.length());
+            for (int i = 0; i < name.length(); i++) {
+                buf.putChar(name.charAt(i));
+            }
+            buf.asIntBuffer().put(it.mFiles.getCachedOrder(comparator));
+            buf.position(buf.position() + count * 4);
+        }
+        buf.flip();
+
+        File tmp = new File(snapshotFile.getPath() + ".tmp");
+        RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+        try {
+            raf.setLength(0);
+            FileChannel channel = raf.getChannel();
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+        }
+        finally {
+            raf.close();
+        }
+        if (!tmp.renameTo(snapshotFile)) {
+            tmp.delete();
+            throw new IOException("failed to rename " + tmp + " to " + snapshotFile);
+        }
+    }
+
+    /**
+     * @return スナップショットがなければnull
+     * @throws IOException
+     *             スナップショットが壊れているとき
+     */
+    private static Snapshot read(File dir, File snapshotFile) throws IOException {
+        if (!snapshotFile.isFile()) return null;
+
+        RandomAccessFile raf = new RandomAccessFile(snapshotFile, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buf.getInt() != MAGIC || buf.getInt() != VERSION) throw new IOException(
+                    "unknown format: " + snapshotFile);
+
+            Snapshot ret = new Snapshot();
+            ret.dir = dir;
+            ret.dirModified = buf.getLong();
+            ret.listed = buf.getLong();
+            ret.count = buf.getInt();
+            int chars = buf.getInt();
+            ret.sizes = new long[ret.count];
+            ret.modified = new long[ret.count];
+            ret.offsets = new int[ret.count + 1];
+            ret.chars = new char[chars];
+            buf.asLongBuffer().get(ret.sizes);
+            buf.position(buf.position() + ret.count * 8);
+            buf.asLongBuffer().get(ret.modified);
+            buf.position(buf.position() + ret.count * 8);
+            buf.asIntBuffer().get(ret.offsets);
+            buf.position(buf.position() + (ret.count + 1) * 4);
+            buf.asCharBuffer().get(ret.chars);
+            buf.position(buf.position() + chars * 2);
+            for (int i = 0; i < ret.count; i++) {
+                if (ret.offsets[i] < 0 || ret.offsets[i] > ret.offsets[i + 1]) {
+                    throw new IOException("broken offsets: " + snapshotFile);
+                }
+            }
+            if (ret.offsets[ret.count] > chars) throw new IOException("broken offsets: "
+                    + snapshotFile);
+
+            int orders = buf.getInt();
+            ret.comparators = new FileIterator.FileComparators[orders];
+            ret.orders = new int[orders][];
+            for (int i = 0; i < orders; i++) {
+                char[] name = new char[buf.getInt()];
+                buf.asCharBuffer().get(name);
+                buf.position(buf.position() + name.length * 2);
+                ret.comparators[i] = FileIterator.FileComparators.valueOf(new String(name));
+                ret.orders[i] = new int[ret.count];
+                buf.asIntBuffer().get(ret.orders[i]);
+                buf.position(buf.position() + ret.count * 4);
+                if (!isPermutation(ret.orders[i])) throw new IOException("broken order "
+                        + ret.comparators[i] + ": " + snapshotFile);
+            }
+            return ret;
+        }
+        catch (RuntimeException e) {
+            // BufferUnderflowException, IllegalArgumentException, ...
+            IOException ioe = new IOException("broken snapshot: " + snapshotFile);
+            ioe.initCause(e);
+            throw ioe;
+        }
+        finally {
+            raf.close();
+        }
+    }
+
+    private static boolean isPermutation(int[] order) {
+        boolean[] seen = new boolean[order.length];
+        for (int index : order) {
+            if (index < 0 || order.length <= index || seen[index]) return false;
+            seen[index] = true;
+        }
+        return true;
+    }
+
+    /**
+     * 削除されたファイルを取り除き、追加されたファイルを挿入する。
+     * 保存済みの並び順はすべて、追加されたファイルをマージして引き継ぐ。
+     * ファイルを調べるのは追加されたものだけ。
+     */
+    private static void patch(File dir, FilenameFilter filter, Snapshot snapshot) {
+        String[] names = dir.list(filter);
+        if (names == null) names = new String[0];
+        HashSet<String> current = new HashSet<String>(names.length * 2);
+        for (String name : names) {
+            current.add(name);
+        }
+
+        HashSet<String> known = new HashSet<String>(snapshot.count * 2);
+        boolean[] removed = new boolean[snapshot.count];
+        for (int i = 0; i < snapshot.count; i++) {
+            String name = snapshot.getName(i);
+            known.add(name);
+            removed[i] = !current.contains(name);
+        }
+        snapshot.removeAll(removed);
+
+        List<String> added = new ArrayList<String>();
+        for (String name : names) {
+            if (!known.contains(name)) added.add(name);
+        }
+        snapshot.addAll(added);
+    }
+
+    private static final class Snapshot {
+        File dir;
+        long dirModified;
+        /** 列挙を始めた時刻 */
+        long listed;
+        int count;
+        long[] sizes;
+        long[] modified;
+        int[] offsets;
+        char[] chars;
+        FileIterator.FileComparators[] comparators;
+        int[][] orders;
+
+        String getName(int index) {
+            return new String(chars, offsets[index], offsets[index + 1] - offsets[index]);
+        }
+
+        /**
+         * {@code removed[i]}がtrueの要素を取り除き、並び順の添字を詰める。
+         */
+        void removeAll(boolean[] removed) {
+            int[] newIndex = new int[count];
+            int kept = 0;
+            int to = 0;
+            for (int i = 0; i < count; i++) {
+                newIndex[i] = kept;
+                if (removed[i]) continue;
+                int length = offsets[i + 1] - offsets[i];
+                System.arraycopy(chars, offsets[i], chars, to, length);
+                offsets[kept] = to;
+                sizes[kept] = sizes[i];
+                modified[kept] = modified[i];
+                to += length;
+                kept++;
+            }
+            offsets[kept] = to;
+            if (kept == count) return;
+
+            for (int k = 0; k < orders.length; k++) {
+                int[] order = new int[kept];
+                int j = 0;
+                for (int index : orders[k]) {
+                    if (!removed[index]) order[j++] = newIndex[index];
+                }
+                orders[k] = order;
+            }
+            count = kept;
+        }
+
+        /**
+         * {@code names}を末尾に追加し、保存済みの並び順それぞれに、
+         * 追加した要素をソートしてからマージする。 元の要素どうしは比較しない。
+         */
+        void addAll(List<String> names) {
+            if (names.isEmpty()) return;
+            int n = count;
+            int k = names.size();
+            int length = offsets[n];
+            for (String name : names) {
+                length += name.length();
+            }
+
+            char[] newChars = new char[length];
+            int[] newOffsets = new int[n + k + 1];
+            long[] newSizes = new long[n + k];
+            long[] newModified = new long[n + k];
+            System.arraycopy(chars, 0, newChars, 0, offsets[n]);
+            System.arraycopy(offsets, 0, newOffsets, 0, n + 1);
+            System.arraycopy(sizes, 0, newSizes, 0, n);
+            System.arraycopy(modified, 0, newModified, 0, n);
+            for (int j = 0; j < k; j++) {
+                String name = names.get(j);
+                int offset = newOffsets[n + j];
+                name.getChars(0, name.length(), newChars, offset);
+                newOffsets[n + j + 1] = offset + name.length();
+                File file = new File(dir, name);
+                newSizes[n + j] = file.length();
+                newModified[n + j] = file.lastModified();
+            }
+            chars = newChars;
+            offsets = newOffsets;
+            sizes = newSizes;
+            modified = newModified;
+            count = n + k;
+
+            List<File> files = new CompactFileList(dir, chars, offsets, count);
+            for (int i = 0; i < orders.length; i++) {
+                orders[i] = insert(orders[i], n, indexComparator(comparators[i], files));
+            }
+        }
+
+        /**
+         * @param order
+         *            添字{@code n}未満の要素の並び順
+         * @return 添字{@code n}以上の要素をソートして{@code order}にマージした並び順。
+         *         順位が同じなら元の要素が先になるので、全体を安定ソートした結果と同じ
+         */
+        private int[] insert(int[] order, int n, IndexSorter.IndexComparator comparator) {
+            int[] added = new int[count - n];
+            for (int j = 0; j < added.length; j++) {
+                added[j] = n + j;
+            }
+            IndexSorter.sort(added, comparator);
+
+            int[] ret = new int[count];
+            int i = 0, j = 0, r = 0;
+            while (i < order.length && j < added.length) {
+                if (comparator.compare(added[j], order[i]) < 0) ret[r++] = added[j++];
+                else ret[r++] = order[i++];
+            }
+            while (i < order.length) ret[r++] = order[i++];
+            while (j < added.length) ret[r++] = added[j++];
+            return ret;
+        }
+
+        /**
+         * サイズ順と日付順は保存済みの属性で比較し、ファイルを調べない。
+         */
+        private IndexSorter.IndexComparator indexComparator(
+                final FileIterator.FileComparators comparator, final List<File> files) {
+            switch (comparator) {
+            case FILESIZE:
+                return new IndexSorter.IndexComparator() {
+                    public int compare(int index1, int index2) {
+                        return IndexSorter.compareLong(sizes[index1], sizes[index2]);
+                    }
+                };
+            case DATE:
+                return new IndexSorter.IndexComparator() {
+                    public int compare(int index1, int index2) {
+                        return IndexSorter.compareLong(modified[index1], modified[index2]);
+                    }
+                };
+            default:
+                return new IndexSorter.IndexComparator() {
+                    public int compare(int index1, int index2) {
+                        return comparator.compare(files.get(index1), files.get(index2));
+                    }
+                };
+            }
+        }
+
+        FileIterator toIterator(Comparator<File> comparator) {
+            PermutedFileList files = new PermutedFileList(new CompactFileList(dir, chars,
+                    offsets, count));
+            for (int i = 0; i < orders.length; i++) {
+                files.putCachedOrder(comparators[i], orders[i]);
+            }
+            // 保存済みの属性があるので、サイズ順と日付順はファイルを調べずに作れる
+            if (files.getCachedOrder(FileIterator.FileComparators.FILESIZE) == null) {
+                files.putCachedOrder(FileIterator.FileComparators.FILESIZE, IndexSorter
+                        .sortByKeys(trim(sizes)));
+            }
+            if (files.getCachedOrder(FileIterator.FileComparators.DATE) == null) {
+                files.putCachedOrder(FileIterator.FileComparators.DATE, IndexSorter
+                        .sortByKeys(trim(modified)));
+            }
+            return new FileIterator(files, comparator, false);
+        }
+
+        long[] trim(long[] keys) {
+            if (keys.length == count) return keys;
+            long[] ret = new long[count];
+            System.arraycopy(keys, 0, ret, 0, count);
+            return ret;
+        }
+    }
+
+}
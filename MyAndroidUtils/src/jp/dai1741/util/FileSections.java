@@ -0,0 +1,170 @@
+package jp.dai1741.util;
+
+import java.io.File;
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * ソート済みのファイル一覧を区切ったセクションの索引。
+ * <p>
+ * 頭文字、日付、サイズの区分など、隣り合う要素の区分が変わる位置をセクションの先頭として記録する。
+ * 一覧の順序と区分が一致するとき（例えばファイル名順と頭文字）に意味のある索引になる。
+ * メソッド名はandroid.widget.SectionIndexerに合わせてあるので、アダプターからそのまま委譲できる。
+ * </p>
+ *
+ * @author dai
+ * @see FileIterator#getSections(Sectioner)
+ */
+public final class FileSections {
+
+    /**
+     * ファイルの区分を決める関数。
+     */
+    public static interface Sectioner {
+        /**
+         * @return 区分を表す値。 隣り合う要素でこの値が変わる位置がセクションの先頭になる
+         */
+        long getSectionKey(File file);
+
+        /**
+         * @param first
+         *            セクションの先頭の要素
+         * @return セクションの見出し
+         */
+        String getLabel(File first, long key);
+    }
+
+    /**
+     * ファイル名の頭文字で区切る。 アルファベットの大文字と小文字は区別しない。
+     */
+    public static final Sectioner FIRST_LETTER = new Sectioner() {
+        public long getSectionKey(File file) {
+            String path = file.getPath();
+            int start = FileIterator.FileComparators.nameStart(path);
+            return start < path.length() ? Character.toUpperCase(path.charAt(start)) : -1;
+        }
+
+        public String getLabel(File first, long key) {
+            return key >= 0 ? String.valueOf((char) key) : "";
+        }
+    };
+
+    /**
+     * 更新日で区切る。 日付の境界はデフォルトのタイムゾーンで決める。
+     */
+    public static final Sectioner DAY = new Sectioner() {
+        private static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+
+        public long getSectionKey(File file) {
+            long time = file.lastModified();
+            return (time + TimeZone.getDefault().getOffset(time)) / DAY_MILLIS;
+        }
+
+        public String getLabel(File first, long key) {
+            return DateFormat.getDateInstance().format(new Date(first.lastModified()));
+        }
+    };
+
+    /**
+     * サイズを2の累乗ごとに区切る。
+     */
+    public static final Sectioner SIZE_BUCKET = new Sectioner() {
+        public long getSectionKey(File file) {
+            return 64 - Long.numberOfLeadingZeros(file.length());
+        }
+
+        public String getLabel(File first, long key) {
+            if (key == 0) return "0B";
+            long min = 1L << (key - 1);
+            String[] units = { "B", "KB", "MB", "GB", "TB" };
+            int unit = 0;
+            while (min >= 1024 && unit < units.length - 1) {
+                min /= 1024;
+                unit++;
+            }
+            return min + units[unit] + "+";
+        }
+    };
+
+    private final String[] mLabels;
+    /** i番目のセクションの先頭の位置 */
+    private final int[] mStarts;
+    private final int mSize;
+
+    private FileSections(String[] labels, int[] starts, int size) {
+        mLabels = labels;
+        mStarts = starts;
+        mSize = size;
+    }
+
+    /**
+     * 一覧を先頭から1度だけ走査して索引を作る。
+     */
+    static FileSections build(List<File> files, Sectioner sectioner) {
+        List<String> labels = new ArrayList<String>();
+        int[] starts = new int[16];
+        long previous = 0;
+        for (int i = 0; i < files.size(); i++) {
+            File file = files.get(i);
+            long key = sectioner.getSectionKey(file);
+            if (i > 0 && key == previous) continue;
+
+            if (labels.size() == starts.length) {
+                int[] newStarts = new int[starts.length * 2];
+                System.arraycopy(starts, 0, newStarts, 0, starts.length);
+                starts = newStarts;
+            }
+            starts[labels.size()] = i;
+            labels.add(sectioner.getLabel(file, key));
+            previous = key;
+        }
+
+        int[] trimmed = new int[labels.size()];
+        System.arraycopy(starts, 0, trimmed, 0, trimmed.length);
+        return new FileSections(labels.toArray(new String[labels.size()]), trimmed, files
+                .size());
+    }
+
+    /**
+     * @return セクションの見出し
+     */
+    public Object[] getSections() {
+        return mLabels.clone();
+    }
+
+    public int getSectionCount() {
+        return mLabels.length;
+    }
+
+    /**
+     * @return セクションの先頭の位置。 範囲外のセクションなら最も近いセクションの先頭
+     */
+    public int getPositionForSection(int section) {
+        if (mStarts.length == 0) return 0;
+        if (section < 0) return 0;
+        if (section >= mStarts.length) return mStarts[mStarts.length - 1];
+        return mStarts[section];
+    }
+
+    /**
+     * 二分探索で求める。
+     *
+     * @return {@code position}を含むセクション
+     */
+    public int getSectionForPosition(int position) {
+        if (mStarts.length == 0 || position < 0) return 0;
+        if (position >= mSize) return mStarts.length - 1;
+        int lo = 0;
+        int hi = mStarts.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (mStarts[mid] <= position) lo = mid;
+            else hi = mid - 1;
+        }
+        return lo;
+    }
+
+}
@@ -0,0 +1,270 @@
+package jp.dai1741.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * 要素そのものではなく添字の配列（順列）をソートするユーティリティ。
+ * <p>
+ * ソートキーを事前にプリミティブ配列へ展開しておき、添字同士の比較だけでソートするために使う。
+ * ソートは安定。
+ * </p>
+ *
+ * @author dai
+ */
+final class IndexSorter {
+
+    private static final int INSERTION_SORT_THRESHOLD = 7;
+
+    /**
+     * 要素数がこれ未満なら、スレッドプールが与えられても並列化しない。
+     */
+    static final int PARALLEL_THRESHOLD = 8 * 1024;
+
+    private IndexSorter() {
+    }
+
+    /**
+     * 添字同士を比較する関数。
+     */
+    static interface IndexComparator {
+        int compare(int index1, int index2);
+    }
+
+    /**
+     * 添字の範囲に対する処理。 並列に呼ばれることがある。
+     */
+    static interface RangeTask {
+        void run(int from, int to);
+    }
+
+    /**
+     * @return {0, 1, ..., n-1}
+     */
+    static int[] identity(int n) {
+        int[] ret = new int[n];
+        for (int i = 0; i < n; i++) {
+            ret[i] = i;
+        }
+        return ret;
+    }
+
+    /**
+     * {@code keys}の昇順に並べた添字の順列を返す。 同じキーの添字は元の順に並ぶ。
+     */
+    static int[] sortByKeys(final long[] keys) {
+        return sortByKeys(keys, null);
+    }
+
+    /**
+     * @param executor
+     *            null可
+     * @see #sortByKeys(long[])
+     * @see #sort(int[], IndexComparator, ExecutorService)
+     */
+    static int[] sortByKeys(final long[] keys, ExecutorService executor) {
+        int[] perm = identity(keys.length);
+        sort(perm, new IndexComparator() {
+            public int compare(int index1, int index2) {
+                return compareLong(keys[index1], keys[index2]);
+            }
+        }, executor);
+        return perm;
+    }
+
+    /**
+     * 順列{@code perm}を安定ソートする。
+     */
+    static void sort(int[] perm, IndexComparator comparator) {
+        int[] buf = new int[perm.length];
+        mergeSort(perm, buf, 0, perm.length, comparator);
+    }
+
+    /**
+     * 順列{@code perm}を安定ソートする。
+     * 要素数が{@value #PARALLEL_THRESHOLD}以上で{@code executor}が与えられれば、
+     * 区間ごとに並列にソートしてから隣り合う区間を並列にマージする。
+     * 
+     * @param comparator
+     *            並列に呼ばれることがある
+     * @param executor
+     *            null可。 このメソッドを{@code executor}のタスクから呼んではならない
+     */
+    static void sort(final int[] perm, final IndexComparator comparator,
+            ExecutorService executor) {
+        int n = perm.length;
+        int chunks = Math.min(Runtime.getRuntime().availableProcessors() * 2, n
+                / INSERTION_SORT_THRESHOLD);
+        if (executor == null || n < PARALLEL_THRESHOLD || chunks < 2) {
+            sort(perm, comparator);
+            return;
+        }
+
+        final int[] buf = new int[n];
+        int[] bounds = new int[chunks + 1];
+        for (int i = 0; i <= chunks; i++) {
+            bounds[i] = (int) ((long) n * i / chunks);
+        }
+
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(chunks);
+        for (int i = 0; i < chunks; i++) {
+            final int from = bounds[i];
+            final int to = bounds[i + 1];
+            tasks.add(new Callable<Void>() {
+                public Void call() {
+                    mergeSort(perm, buf, from, to, comparator);
+                    return null;
+                }
+            });
+        }
+        invokeAll(executor, tasks);
+
+        while (bounds.length > 2) {
+            int runs = bounds.length - 1;
+            int[] next = new int[(runs + 1) / 2 + 1];
+            tasks.clear();
+            for (int i = 0; i < runs; i += 2) {
+                next[i / 2] = bounds[i];
+                if (i + 1 == runs) continue;
+                final int from = bounds[i];
+                final int mid = bounds[i + 1];
+                final int to = bounds[i + 2];
+                tasks.add(new Callable<Void>() {
+                    public Void call() {
+                        merge(perm, buf, from, mid, to, comparator);
+                        return null;
+                    }
+                });
+            }
+            next[next.length - 1] = n;
+            invokeAll(executor, tasks);
+            bounds = next;
+        }
+    }
+
+    /**
+     * {@code [0, n)}を区間に分けて{@code task}を実行する。
+     * 要素数が{@value #PARALLEL_THRESHOLD}以上で{@code executor}が与えられれば並列に実行する。
+     * 
+     * @param executor
+     *            null可
+     */
+    static void forEachRange(int n, ExecutorService executor, final RangeTask task) {
+        int chunks = Runtime.getRuntime().availableProcessors() * 2;
+        if (executor == null || n < PARALLEL_THRESHOLD) {
+            task.run(0, n);
+            return;
+        }
+
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(chunks);
+        for (int i = 0; i < chunks; i++) {
+            final int from = (int) ((long) n * i / chunks);
+            final int to = (int) ((long) n * (i + 1) / chunks);
+            tasks.add(new Callable<Void>() {
+                public Void call() {
+                    task.run(from, to);
+                    return null;
+                }
+            });
+        }
+        invokeAll(executor, tasks);
+    }
+
+    /**
+     * 全タスクの完了を待つ。 タスクが例外を投げたらその例外を投げ直す。
+     * 実行中のタスクが配列を書き換えている間に戻らないよう、割り込まれても完了まで待ち、
+     * 割り込み状態は戻る前に復元する。
+     */
+    private static void invokeAll(ExecutorService executor, List<Callable<Void>> tasks) {
+        List<Future<Void>> futures = new ArrayList<Future<Void>>(tasks.size());
+        for (Callable<Void> task : tasks) {
+            futures.add(executor.submit(task));
+        }
+
+        boolean interrupted = false;
+        try {
+            for (Future<Void> future : futures) {
+                while (true) {
+                    try {
+                        future.get();
+                        break;
+                    }
+                    catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                    catch (ExecutionException e) {
+                        Throwable cause = e.getCause();
+                        if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                        if (cause instanceof Error) throw (Error) cause;
+                        throw new IllegalStateException(cause);
+                    }
+                }
+            }
+        }
+        finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void mergeSort(int[] a, int[] buf, int from, int to,
+            IndexComparator comparator) {
+        if (to - from <= INSERTION_SORT_THRESHOLD) {
+            for (int i = from + 1; i < to; i++) {
+                int x = a[i];
+                int j = i;
+                for (; j > from && comparator.compare(a[j - 1], x) > 0; j--) {
+                    a[j] = a[j - 1];
+                }
+                a[j] = x;
+            }
+            return;
+        }
+
+        int mid = (from + to) >>> 1;
+        mergeSort(a, buf, from, mid, comparator);
+        mergeSort(a, buf, mid, to, comparator);
+        merge(a, buf, from, mid, to, comparator);
+    }
+
+    /**
+     * ソート済みの隣り合う区間{@code [from, mid)}と{@code [mid, to)}をマージする。
+     * {@code buf}は同じ区間だけを使う。
+     */
+    private static void merge(int[] a, int[] buf, int from, int mid, int to,
+            IndexComparator comparator) {
+        if (from == mid || mid == to || comparator.compare(a[mid - 1], a[mid]) <= 0) return;
+
+        System.arraycopy(a, from, buf, from, to - from);
+        int i = from, j = mid, k = from;
+        while (i < mid && j < to) {
+            a[k++] = comparator.compare(buf[j], buf[i]) < 0 ? buf[j++] : buf[i++];
+        }
+        while (i < mid) a[k++] = buf[i++];
+        while (j < to) a[k++] = buf[j++];
+    }
+
+    static int compareLong(long a, long b) {
+        return a < b ? -1 : a > b ? 1 : 0;
+    }
+
+    /**
+     * 符号なしバイトの辞書順で比較する。
+     */
+    static int compareBytes(byte[] a, byte[] b) {
+        int n = Math.min(a.length, b.length);
+        for (int i = 0; i < n; i++) {
+            int ret = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (ret != 0) return ret;
+        }
+        return a.length - b.length;
+    }
+
+    static int compareInt(int a, int b) {
+        return a < b ? -1 : a > b ? 1 : 0;
+    }
+
+}
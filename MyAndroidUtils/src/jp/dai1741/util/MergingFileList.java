@@ -0,0 +1,91 @@
+package jp.dai1741.util;
+
+import java.io.File;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.RandomAccess;
+
+/**
+ * ソート済みの複数の列を、要素が必要になった分だけヒープでマージするリスト。
+ * <p>
+ * i番目の要素を求めると、i番目までをマージする。 k個の列のn要素全体をマージしてもO(n log k)で、
+ * 先頭付近しか読まなければそれだけで済む。
+ * 同じ順位の要素は先の列のものが先になる。
+ * 要素を追加・削除すると、その前に残りを全てマージする。
+ * </p>
+ *
+ * @author dai
+ * @see FileIterator#merge(List, Comparator)
+ */
+final class MergingFileList extends AbstractList<File> implements RandomAccess {
+
+    private final ArrayList<File> mMerged;
+    private final PriorityQueue<FileIterator.RunCursor> mHeap;
+    private int mSize;
+
+    /**
+     * @param runs
+     *            それぞれ{@code comparator}の順にソート済みの列。 マージが終わるまで変更してはならない
+     * @param comparator
+     *            null可
+     */
+    MergingFileList(List<? extends List<File>> runs, Comparator<File> comparator) {
+        mHeap = new PriorityQueue<FileIterator.RunCursor>(Math.max(runs.size(), 1));
+        for (int i = 0; i < runs.size(); i++) {
+            List<File> run = runs.get(i);
+            mSize += run.size();
+            if (!run.isEmpty()) mHeap.add(new FileIterator.RunCursor(run, i, comparator));
+        }
+        mMerged = new ArrayList<File>(mSize);
+    }
+
+    @Override
+    public File get(int index) {
+        if (index < 0 || mSize <= index) {
+            throw new IndexOutOfBoundsException("index: " + index);
+        }
+        mergeUntil(index + 1);
+        return mMerged.get(index);
+    }
+
+    @Override
+    public int size() {
+        return mSize;
+    }
+
+    @Override
+    public void add(int index, File file) {
+        mergeUntil(mSize);
+        mMerged.add(index, file);
+        mSize++;
+        modCount++;
+    }
+
+    @Override
+    public File remove(int index) {
+        mergeUntil(mSize);
+        File ret = mMerged.remove(index);
+        mSize--;
+        modCount++;
+        return ret;
+    }
+
+    /**
+     * @return マージ済みの要素数
+     */
+    int getMergedCount() {
+        return mMerged.size();
+    }
+
+    private void mergeUntil(int count) {
+        while (mMerged.size() < count && !mHeap.isEmpty()) {
+            FileIterator.RunCursor cursor = mHeap.poll();
+            mMerged.add(cursor.head);
+            if (cursor.advance()) mHeap.add(cursor);
+        }
+    }
+
+}
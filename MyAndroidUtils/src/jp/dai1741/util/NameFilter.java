@@ -0,0 +1,211 @@
+package jp.dai1741.util;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FilenameFilter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * ファイル名だけを見るフィルター。
+ * <p>
+ * 拡張子の集合、ワイルドカード、正規表現の条件を1つのフィルターにまとめ、いずれかに一致する名前を受け付ける。
+ * {@link File#list(FilenameFilter)}に渡せば、ディレクトリ内の名前のまま判定されるので、
+ * 要素ごとに{@code File}を作ったりファイル属性を調べたりしない。
+ * </p>
+ * <p>
+ * このクラスのインスタンスは不変で、複数のスレッドから使える。
+ * </p>
+ *
+ * @author dai
+ * @see FileIterator#inCompact(File, FilenameFilter, Comparator)
+ */
+public final class NameFilter implements FilenameFilter {
+
+    /** '.'から始まる小文字の拡張子。 短い順 */
+    private final String[] mExtensions;
+    /** ワイルドカードと正規表現をまとめたもの。 なければnull */
+    private final Pattern mPattern;
+    private final ThreadLocal<Matcher> mMatcher;
+
+    private NameFilter(Set<String> extensions, List<String> regexes) {
+        mExtensions = extensions.toArray(new String[extensions.size()]);
+        Arrays.sort(mExtensions, new Comparator<String>() {
+            public int compare(String object1, String object2) {
+                return object1.length() - object2.length();
+            }
+        });
+
+        if (regexes.isEmpty()) {
+            mPattern = null;
+            mMatcher = null;
+            return;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (String regex : regexes) {
+            if (sb.length() > 0) sb.append('|');
+            sb.append("(?:").append(regex).append(')');
+        }
+        mPattern = Pattern.compile(sb.toString());
+        mMatcher = new ThreadLocal<Matcher>() {
+            @Override
+            protected Matcher initialValue() {
+                return mPattern.matcher("");
+            }
+        };
+    }
+
+    /**
+     * 拡張子で判定するフィルターを返す。 大文字と小文字は区別しない。
+     *
+     * @param extensions
+     *            "jpg"または".jpg"の形式
+     */
+    public static NameFilter extensions(String... extensions) {
+        Set<String> set = new LinkedHashSet<String>();
+        for (String extension : extensions) {
+            String ext = extension.toLowerCase();
+            set.add(ext.startsWith(".") ? ext : "." + ext);
+        }
+        return new NameFilter(set, new ArrayList<String>(0));
+    }
+
+    /**
+     * ワイルドカードで判定するフィルターを返す。
+     * '*'は任意の文字列、'?'は任意の1文字、"[abc]"は文字クラス、"{a,b}"はいずれかの文字列に一致する。
+     *
+     * @param ignoreCase
+     *            大文字と小文字を区別しないか
+     * @throws IllegalArgumentException
+     *             if {@code glob} is malformed
+     */
+    public static NameFilter glob(String glob, boolean ignoreCase) {
+        String regex = globToRegex(glob);
+        return regex(ignoreCase ? "(?i:" + regex + ")" : regex);
+    }
+
+    /**
+     * 名前全体が正規表現に一致するかで判定するフィルターを返す。
+     *
+     * @throws java.util.regex.PatternSyntaxException
+     *             if {@code regex} is malformed
+     */
+    public static NameFilter regex(String regex) {
+        Pattern.compile(regex);
+        List<String> regexes = new ArrayList<String>(1);
+        regexes.add(regex);
+        return new NameFilter(new LinkedHashSet<String>(0), regexes);
+    }
+
+    /**
+     * いずれかのフィルターが受け付ける名前を受け付けるフィルターを返す。
+     * 条件はまとめて1つの正規表現と1つの拡張子の集合にする。
+     */
+    public static NameFilter or(NameFilter... filters) {
+        Set<String> extensions = new LinkedHashSet<String>();
+        List<String> regexes = new ArrayList<String>();
+        for (NameFilter filter : filters) {
+            extensions.addAll(Arrays.asList(filter.mExtensions));
+            if (filter.mPattern != null) regexes.add(filter.mPattern.pattern());
+        }
+        return new NameFilter(extensions, regexes);
+    }
+
+    public boolean accept(File dir, String filename) {
+        return accept(filename);
+    }
+
+    public boolean accept(String filename) {
+        int length = filename.length();
+        for (String extension : mExtensions) {
+            if (extension.length() > length) break;
+            if (filename.regionMatches(true, length - extension.length(), extension, 0,
+                    extension.length())) return true;
+        }
+        return mPattern != null && mMatcher.get().reset(filename).matches();
+    }
+
+    /**
+     * ファイル名だけで判定する{@link FileFilter}を返す。
+     * {@link FileIterator#in(File, FileFilter, Comparator)}などに渡すときに使う。
+     * {@code FileIterator}はこのフィルターを認識し、{@code File}を作る前に名前で判定する。
+     */
+    public FileFilter asFileFilter() {
+        return new NameFileFilter(this);
+    }
+
+    /**
+     * @return {@code ff}が{@link #asFileFilter()}で作られたものなら元のフィルター、そうでなければnull
+     */
+    static NameFilter unwrap(FileFilter ff) {
+        return ff instanceof NameFileFilter ? ((NameFileFilter) ff).filter : null;
+    }
+
+    private static final class NameFileFilter implements FileFilter {
+        final NameFilter filter;
+
+        NameFileFilter(NameFilter filter) {
+            this.filter = filter;
+        }
+
+        public boolean accept(File pathname) {
+            return filter.accept(pathname.getName());
+        }
+    }
+
+    static String globToRegex(String glob) {
+        StringBuilder sb = new StringBuilder(glob.length() * 2);
+        boolean inGroup = false;
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            switch (c) {
+            case '*':
+                sb.append(".*");
+                break;
+            case '?':
+                sb.append('.');
+                break;
+            case '[':
+                int end = glob.indexOf(']', i + 2);
+                if (end < 0) throw new IllegalArgumentException("unclosed '[': " + glob);
+                sb.append('[');
+                for (int j = i + 1; j < end; j++) {
+                    char cc = glob.charAt(j);
+                    if (j == i + 1 && cc == '!') sb.append('^');
+                    else if (cc == '\\' || cc == '[' || cc == '&' || cc == '^') {
+                        sb.append('\\').append(cc);
+                    }
+                    else sb.append(cc);
+                }
+                sb.append(']');
+                i = end;
+                break;
+            case '{':
+                if (inGroup) throw new IllegalArgumentException("nested '{': " + glob);
+                inGroup = true;
+                sb.append("(?:");
+                break;
+            case '}':
+                if (!inGroup) throw new IllegalArgumentException("unmatched '}': " + glob);
+                inGroup = false;
+                sb.append(')');
+                break;
+            case ',':
+                sb.append(inGroup ? "|" : ",");
+                break;
+            default:
+                if ("\\.^$|+()".indexOf(c) >= 0) sb.append('\\');
+                sb.append(c);
+            }
+        }
+        if (inGroup) throw new IllegalArgumentException("unclosed '{': " + glob);
+        return sb.toString();
+    }
+
+}
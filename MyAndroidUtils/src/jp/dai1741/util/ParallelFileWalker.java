@@ -0,0 +1,107 @@
+package jp.dai1741.util;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * ディレクトリ木をディレクトリ単位で並列に走査し、ディレクトリごとにソート済みの列を作る。
+ * <p>
+ * 各タスクは1つのディレクトリを列挙してソートし、サブディレクトリのタスクを投入するだけで、
+ * 他のタスクの完了を待たない。 そのため固定サイズのスレッドプールでもデッドロックしない。
+ * </p>
+ *
+ * @see PendingTasks
+ *
+ * @author dai
+ */
+final class ParallelFileWalker {
+
+    private final FileFilter mFilter;
+    private final Comparator<File> mComparator;
+    private final int mMaxDepth;
+
+    private final List<Run> mRuns = Collections.synchronizedList(new ArrayList<Run>());
+    private final PendingTasks mPendingTasks;
+
+    /**
+     * @param filter
+     *            ディレクトリ以外のファイルに適用する。 null可
+     * @param comparator
+     *            null可
+     */
+    ParallelFileWalker(FileFilter filter, Comparator<File> comparator, int maxDepth,
+            ExecutorService executor) {
+        mFilter = filter;
+        mComparator = comparator;
+        mMaxDepth = maxDepth;
+        mPendingTasks = new PendingTasks(executor);
+    }
+
+    /**
+     * 走査が終わるまでブロックする。
+     *
+     * @return ディレクトリごとのソート済みの列。 ディレクトリのパス順
+     */
+    List<List<File>> walk(File root) throws InterruptedException {
+        submit(root, 0);
+        mPendingTasks.await();
+
+        Collections.sort(mRuns);
+        List<List<File>> ret = new ArrayList<List<File>>(mRuns.size());
+        for (Run run : mRuns) {
+            ret.add(run.files);
+        }
+        return ret;
+    }
+
+    private void submit(final File dir, final int depth) {
+        mPendingTasks.submit(new Runnable() {
+            public void run() {
+                list(dir, depth);
+            }
+        });
+    }
+
+    private void list(File dir, int depth) {
+        File[] entries = dir.listFiles();
+        if (entries == null) return;
+
+        ArrayList<File> files = new ArrayList<File>(entries.length);
+        for (File entry : entries) {
+            if (entry.isDirectory()) {
+                if (depth < mMaxDepth) submit(entry, depth + 1);
+            }
+            else if (mFilter == null || mFilter.accept(entry)) {
+                files.add(entry);
+            }
+        }
+        if (files.isEmpty()) return;
+
+        int[] perm = PermutedFileList.sortedPermutation(files, mComparator, null);
+        ArrayList<File> sorted = new ArrayList<File>(perm.length);
+        for (int index : perm) {
+            sorted.add(files.get(index));
+        }
+        mRuns.add(new Run(dir.getPath(), sorted));
+    }
+
+    private static final class Run implements Comparable<Run> {
+        final String path;
+        final List<File> files;
+
+        Run(String path, List<File> files) {
+            this.path = path;
+            this.files = files;
+        }
+
+        public int compareTo(Run another) {
+            return path.compareTo(another.path);
+        }
+    }
+
+}
@@ -0,0 +1,76 @@
+package jp.dai1741.util;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * タスクが別のタスクを投入していく処理の、全タスクの完了を待つためのカウンタ。
+ * <p>
+ * 各タスクは他のタスクの完了を待たないので、固定サイズのスレッドプールでもデッドロックしない。
+ * 最初の例外を記録し、それ以降のタスクは実行しない。
+ * {@link ExecutorService}がタスクを拒否したときも、その例外を記録して数を減らすので、待つ側は止まらない。
+ * </p>
+ *
+ * @author dai
+ * @see ParallelFileWalker
+ * @see DirectorySizes
+ */
+final class PendingTasks {
+
+    private final ExecutorService mExecutor;
+    private final AtomicInteger mCount = new AtomicInteger();
+    private final AtomicReference<Throwable> mError = new AtomicReference<Throwable>();
+    private final CountDownLatch mDone = new CountDownLatch(1);
+
+    PendingTasks(ExecutorService executor) {
+        mExecutor = executor;
+    }
+
+    /**
+     * {@code task}を投入する。 すでに例外が記録されていれば、{@code task}は実行されない。
+     */
+    void submit(final Runnable task) {
+        mCount.incrementAndGet();
+        try {
+            mExecutor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        if (mError.get() == null) task.run();
+                    }
+                    catch (Throwable e) {
+                        mError.compareAndSet(null, e);
+                    }
+                    finally {
+                        finish();
+                    }
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            mError.compareAndSet(null, e);
+            finish();
+        }
+    }
+
+    /**
+     * 全てのタスクが終わるまでブロックする。
+     *
+     * @throws RuntimeException
+     *             タスクが投げたか、タスクが拒否されたとき
+     */
+    void await() throws InterruptedException {
+        mDone.await();
+
+        Throwable error = mError.get();
+        if (error instanceof RuntimeException) throw (RuntimeException) error;
+        if (error instanceof Error) throw (Error) error;
+    }
+
+    private void finish() {
+        if (mCount.decrementAndGet() == 0) mDone.countDown();
+    }
+
+}
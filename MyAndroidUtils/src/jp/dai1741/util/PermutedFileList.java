@@ -0,0 +1,215 @@
+package jp.dai1741.util;
+
+import java.io.File;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * 元のファイル列を動かさず、並び順を添字の順列で持つリスト。
+ * <p>
+ * 一度使った比較関数ごとに順列をキャッシュするため、以前の並び順に戻すときはソートしない。
+ * 要素が追加・削除されるとキャッシュは破棄される。
+ * </p>
+ *
+ * @author dai
+ */
+final class PermutedFileList extends AbstractList<File> implements RandomAccess {
+
+    private final List<File> mSource;
+    /** i番目の要素の{@code mSource}内での添字 */
+    private int[] mOrder;
+    /** {@code mOrder}の逆順列。 必要になるまで作らない */
+    private int[] mInverse;
+    private final HashMap<Comparator<File>, int[][]> mOrderCache = new HashMap<Comparator<File>, int[][]>();
+    private ExecutorService mSortExecutor;
+
+    /**
+     * @param source
+     *            このリストが所有する。 呼び出し側で変更してはならない。
+     *            末尾への追加と任意の位置の削除ができること
+     */
+    PermutedFileList(List<File> source) {
+        mSource = source;
+        mOrder = IndexSorter.identity(source.size());
+    }
+
+    @Override
+    public File get(int index) {
+        if (index < 0 || mOrder.length <= index) {
+            throw new IndexOutOfBoundsException("index: " + index);
+        }
+        return mSource.get(mOrder[index]);
+    }
+
+    @Override
+    public int size() {
+        return mOrder.length;
+    }
+
+    @Override
+    public void add(int index, File file) {
+        if (index < 0 || mOrder.length < index) {
+            throw new IndexOutOfBoundsException("index: " + index);
+        }
+        mSource.add(file);
+        int[] order = new int[mOrder.length + 1];
+        System.arraycopy(mOrder, 0, order, 0, index);
+        order[index] = mSource.size() - 1;
+        System.arraycopy(mOrder, index, order, index + 1, mOrder.length - index);
+        setOrder(order);
+        invalidate();
+    }
+
+    @Override
+    public File remove(int index) {
+        File ret = get(index);
+        int removed = mOrder[index];
+        mSource.remove(removed);
+
+        int[] order = new int[mOrder.length - 1];
+        for (int i = 0, j = 0; i < mOrder.length; i++) {
+            if (i == index) continue;
+            order[j++] = mOrder[i] > removed ? mOrder[i] - 1 : mOrder[i];
+        }
+        setOrder(order);
+        invalidate();
+        return ret;
+    }
+
+    /**
+     * 現在の並び順が{@code comparator}でソート済みであることを記録する。
+     */
+    void markSorted(Comparator<File> comparator) {
+        mOrderCache.put(comparator, new int[][] { mOrder, mInverse });
+    }
+
+    /**
+     * {@code comparator}の順に並べ替える。 一度使った比較関数ならソートしない。
+     *
+     * @param index
+     *            並べ替えの前後で追跡する要素の位置。 範囲外ならそのまま返す
+     * @return 並べ替え後の{@code index}の要素の位置
+     */
+    int sortBy(Comparator<File> comparator, int index) {
+        int source = 0 <= index && index < mOrder.length ? mOrder[index] : -1;
+
+        int[][] cached = mOrderCache.get(comparator);
+        if (cached == null) {
+            cached = new int[][] { sortedPermutation(mSource, comparator, mSortExecutor),
+                    null };
+            mOrderCache.put(comparator, cached);
+        }
+        mOrder = cached[0];
+        if (cached[1] == null && source >= 0) cached[1] = inverse(mOrder);
+        mInverse = cached[1];
+
+        return source >= 0 ? mInverse[source] : index;
+    }
+
+    /**
+     * @param executor
+     *            null可
+     * @see FileIterator#setSortExecutor(ExecutorService)
+     */
+    void setSortExecutor(ExecutorService executor) {
+        mSortExecutor = executor;
+    }
+
+    /**
+     * 要素が追加・削除されるか並び順が変わると別の配列になる。 配列の中身は変更されない。
+     *
+     * @return 現在の並び順を表す順列。 変更してはならない
+     */
+    int[] getOrder() {
+        return mOrder;
+    }
+
+    /**
+     * @return {@code index}番目の要素の、元のファイル列での添字
+     */
+    int getSourceIndex(int index) {
+        if (index < 0 || mOrder.length <= index) {
+            throw new IndexOutOfBoundsException("index: " + index);
+        }
+        return mOrder[index];
+    }
+
+    /**
+     * @return 並べ替える前の元のファイル列。 変更してはならない
+     */
+    List<File> getSource() {
+        return mSource;
+    }
+
+    /**
+     * @return {@code comparator}で並べたときの順列。 まだ使っていなければnull
+     */
+    int[] getCachedOrder(Comparator<File> comparator) {
+        int[][] cached = mOrderCache.get(comparator);
+        return cached != null ? cached[0] : null;
+    }
+
+    /**
+     * {@code comparator}で並べたときの順列を外部から与える。
+     * 
+     * @param order
+     *            元のファイル列に対する順列。 このリストが所有する
+     */
+    void putCachedOrder(Comparator<File> comparator, int[] order) {
+        if (order.length != mOrder.length) throw new IllegalArgumentException(
+                "invalid length: " + order.length);
+        mOrderCache.put(comparator, new int[][] { order, null });
+    }
+
+    private void setOrder(int[] order) {
+        mOrder = order;
+        mInverse = null;
+    }
+
+    private void invalidate() {
+        modCount++;
+        mOrderCache.clear();
+    }
+
+    private static int[] inverse(int[] perm) {
+        int[] ret = new int[perm.length];
+        for (int i = 0; i < perm.length; i++) {
+            ret[perm[i]] = i;
+        }
+        return ret;
+    }
+
+    /**
+     * {@code files}を{@code comparator}で安定ソートしたときの順列を返す。
+     *
+     * @param comparator
+     *            nullなら自然順序
+     * @param executor
+     *            null可
+     * @see FileIterator.FileComparators#sortedPermutation(List, ExecutorService)
+     */
+    static int[] sortedPermutation(final List<File> files, final Comparator<File> comparator,
+            ExecutorService executor) {
+        if (comparator instanceof FileIterator.FileComparators) {
+            return ((FileIterator.FileComparators) comparator).sortedPermutation(files,
+                    executor);
+        }
+        // 要素ごとにFileを作るリストなら、比較のたびに作らないよう先に1度だけ作る
+        final List<File> list = files instanceof CompactFileList ? new ArrayList<File>(files)
+                : files;
+        int[] perm = IndexSorter.identity(list.size());
+        IndexSorter.sort(perm, new IndexSorter.IndexComparator() {
+            public int compare(int index1, int index2) {
+                return FileIterator.compare(comparator, list.get(index1),
+                        list.get(index2));
+            }
+        }, executor);
+        return perm;
+    }
+
+}
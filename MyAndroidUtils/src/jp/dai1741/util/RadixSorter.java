@@ -0,0 +1,200 @@
+package jp.dai1741.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * {@link SortKeyChain}の先頭の数値キーで基数ソートするユーティリティ。
+ * <p>
+ * 先頭から続く{@code int}、{@code long}、{@code double}のキーを、大小関係を保つ符号なし整数に変換し、
+ * 下位のキーの下位バイトから順に8ビットずつ安定な分布数え上げソートを行う（LSD基数ソート）。
+ * 全要素で同じ値のバイトは飛ばすので、値の範囲が狭いキーほど速い。
+ * 文字列キーなど残りのキーは、数値キーが全て等しい要素の並びの中だけで比較ソートする。
+ * </p>
+ * <p>
+ * ソートは安定で、要素ではなく添字の順列を並べ替える。
+ * </p>
+ *
+ * @author dai
+ */
+public final class RadixSorter {
+
+    /**
+     * 要素数がこれ未満なら基数ソートせずにマージソートする。
+     */
+    static final int RADIX_THRESHOLD = 64;
+
+    private static final int RADIX_BITS = 8;
+    private static final int RADIX = 1 << RADIX_BITS;
+
+    private RadixSorter() {
+    }
+
+    /**
+     * {@code list}を{@code chain}の順序で安定ソートしたときの順列を返す。
+     * 結果は{@link SortKeyChain#sortedPermutation(List)}と同じ。
+     */
+    public static <T> int[] sortedPermutation(List<? extends T> list, SortKeyChain<T> chain) {
+        int n = list.size();
+        int[] perm = IndexSorter.identity(n);
+        if (chain.mKeys.isEmpty() || n < 2) return perm;
+
+        SortKeyChain.Column[] columns = chain.extractColumns(list, null);
+        List<long[]> keys = new ArrayList<long[]>(columns.length);
+        List<Integer> widths = new ArrayList<Integer>(columns.length);
+        for (SortKeyChain.Column column : columns) {
+            long[] key = unsignedKeys(column);
+            if (key == null) break;
+            keys.add(key);
+            widths.add(column instanceof SortKeyChain.IntColumn ? 32 : 64);
+        }
+
+        if (keys.isEmpty() || n < RADIX_THRESHOLD) {
+            IndexSorter.sort(perm, SortKeyChain.comparator(columns));
+            return perm;
+        }
+
+        int[] buf = new int[n];
+        int[] counts = new int[RADIX];
+        for (int c = keys.size() - 1; c >= 0; c--) {
+            long[] key = keys.get(c);
+            for (int shift = 0; shift < widths.get(c); shift += RADIX_BITS) {
+                if (countingSort(perm, buf, key, shift, counts)) {
+                    int[] tmp = perm;
+                    perm = buf;
+                    buf = tmp;
+                }
+            }
+        }
+
+        if (keys.size() < columns.length) {
+            SortKeyChain.Column[] rest = new SortKeyChain.Column[columns.length - keys.size()];
+            System.arraycopy(columns, keys.size(), rest, 0, rest.length);
+            breakTies(perm, keys, SortKeyChain.comparator(rest));
+        }
+        return perm;
+    }
+
+    /**
+     * {@code list}を{@code chain}の順序で安定ソートする。
+     */
+    public static <T> void sort(List<T> list, SortKeyChain<T> chain) {
+        int[] perm = sortedPermutation(list, chain);
+        List<T> sorted = new ArrayList<T>(perm.length);
+        for (int index : perm) {
+            sorted.add(list.get(index));
+        }
+        for (int i = 0; i < perm.length; i++) {
+            list.set(i, sorted.get(i));
+        }
+    }
+
+    /**
+     * {@code perm}を{@code key}の{@code shift}ビット目からの8ビットで安定に並べ替え、{@code out}に書く。
+     *
+     * @return 並べ替えたか。 全要素が同じバケットに入るならfalseで、{@code out}は書き換えない
+     */
+    private static boolean countingSort(int[] perm, int[] out, long[] key, int shift,
+            int[] counts) {
+        int n = perm.length;
+        Arrays.fill(counts, 0);
+        for (int i = 0; i < n; i++) {
+            counts[(int) (key[perm[i]] >>> shift) & (RADIX - 1)]++;
+        }
+        for (int b = 0; b < RADIX; b++) {
+            if (counts[b] == n) return false;
+            if (counts[b] != 0) break;
+        }
+
+        int sum = 0;
+        for (int b = 0; b < RADIX; b++) {
+            int count = counts[b];
+            counts[b] = sum;
+            sum += count;
+        }
+        for (int i = 0; i < n; i++) {
+            int index = perm[i];
+            out[counts[(int) (key[index] >>> shift) & (RADIX - 1)]++] = index;
+        }
+        return true;
+    }
+
+    /**
+     * 数値キーが全て等しい連続した要素を、残りのキーでソートする。
+     */
+    private static void breakTies(int[] perm, List<long[]> keys,
+            IndexSorter.IndexComparator rest) {
+        int n = perm.length;
+        for (int i = 0; i < n;) {
+            int j = i + 1;
+            while (j < n && equalKeys(keys, perm[i], perm[j])) {
+                j++;
+            }
+            if (j - i > 1) {
+                int[] run = new int[j - i];
+                System.arraycopy(perm, i, run, 0, run.length);
+                IndexSorter.sort(run, rest);
+                System.arraycopy(run, 0, perm, i, run.length);
+            }
+            i = j;
+        }
+    }
+
+    private static boolean equalKeys(List<long[]> keys, int index1, int index2) {
+        for (int c = 0; c < keys.size(); c++) {
+            long[] key = keys.get(c);
+            if (key[index1] != key[index2]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * 符号なしで比較したときに列の順序と一致する値に変換する。
+     *
+     * @return 数値の列でなければnull
+     */
+    private static long[] unsignedKeys(SortKeyChain.Column column) {
+        long[] ret;
+        if (column instanceof SortKeyChain.IntColumn) {
+            int[] values = ((SortKeyChain.IntColumn) column).values;
+            ret = new long[values.length];
+            for (int i = 0; i < values.length; i++) {
+                ret[i] = (values[i] ^ Integer.MIN_VALUE) & 0xFFFFFFFFL;
+            }
+            if (column.descending) {
+                for (int i = 0; i < ret.length; i++) {
+                    ret[i] ^= 0xFFFFFFFFL;
+                }
+            }
+            return ret;
+        }
+
+        if (column instanceof SortKeyChain.LongColumn) {
+            long[] values = ((SortKeyChain.LongColumn) column).values;
+            ret = new long[values.length];
+            for (int i = 0; i < values.length; i++) {
+                ret[i] = values[i] ^ Long.MIN_VALUE;
+            }
+        }
+        else if (column instanceof SortKeyChain.DoubleColumn) {
+            double[] values = ((SortKeyChain.DoubleColumn) column).values;
+            ret = new long[values.length];
+            for (int i = 0; i < values.length; i++) {
+                // Double.compareと同じく、-0.0は0.0より前、NaNは最後になる
+                long bits = Double.doubleToLongBits(values[i]);
+                ret[i] = bits < 0 ? ~bits : bits ^ Long.MIN_VALUE;
+            }
+        }
+        else {
+            return null;
+        }
+        if (column.descending) {
+            for (int i = 0; i < ret.length; i++) {
+                ret[i] = ~ret[i];
+            }
+        }
+        return ret;
+    }
+
+}
@@ -0,0 +1,335 @@
+package jp.dai1741.util;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * ソートキーを取り出す関数の連鎖。
+ * <p>
+ * {@link ComparatorChain}と同じく先頭のキーから順に比較するが、比較関数ではなくキーを取り出す関数を持つ。
+ * {@link #sortedPermutation(List)}は各要素のキーを1度だけ取り出してプリミティブ型の配列に並べ、
+ * 添字の順列をその配列同士の比較だけでソートする。
+ * キーの取り出しはO(n)回で済み、比較のたびにキーを計算したりボクシングしたりしない。
+ * </p>
+ * <p>
+ * キーを追加するメソッドはこのインスタンス自身を返す。 追加し終えたインスタンスは複数のスレッドから使える。
+ * </p>
+ *
+ * @author dai
+ */
+public final class SortKeyChain<T> {
+
+    public static interface IntKey<T> {
+        int getKey(T object);
+    }
+
+    public static interface LongKey<T> {
+        long getKey(T object);
+    }
+
+    public static interface DoubleKey<T> {
+        double getKey(T object);
+    }
+
+    /**
+     * nullを返したときは他のどの文字列よりも前になる。
+     */
+    public static interface StringKey<T> {
+        String getKey(T object);
+    }
+
+    final List<KeySpec<T>> mKeys = new ArrayList<KeySpec<T>>();
+
+    public SortKeyChain() {
+    }
+
+    public SortKeyChain<T> thenInt(IntKey<? super T> key) {
+        return thenInt(key, false);
+    }
+
+    /**
+     * @param descending
+     *            降順にするか
+     */
+    public SortKeyChain<T> thenInt(final IntKey<? super T> key, boolean descending) {
+        mKeys.add(new KeySpec<T>(descending) {
+            @Override
+            Column extract(final List<? extends T> list, ExecutorService executor) {
+                final int[] values = new int[list.size()];
+                IndexSorter.forEachRange(values.length, executor, new IndexSorter.RangeTask() {
+                    public void run(int from, int to) {
+                        for (int i = from; i < to; i++) {
+                            values[i] = key.getKey(list.get(i));
+                        }
+                    }
+                });
+                return new IntColumn(values, descending);
+            }
+
+            @Override
+            int compare(T object1, T object2) {
+                return IndexSorter.compareInt(key.getKey(object1), key.getKey(object2));
+            }
+        });
+        return this;
+    }
+
+    public SortKeyChain<T> thenLong(LongKey<? super T> key) {
+        return thenLong(key, false);
+    }
+
+    public SortKeyChain<T> thenLong(final LongKey<? super T> key, boolean descending) {
+        mKeys.add(new KeySpec<T>(descending) {
+            @Override
+            Column extract(final List<? extends T> list, ExecutorService executor) {
+                final long[] values = new long[list.size()];
+                IndexSorter.forEachRange(values.length, executor, new IndexSorter.RangeTask() {
+                    public void run(int from, int to) {
+                        for (int i = from; i < to; i++) {
+                            values[i] = key.getKey(list.get(i));
+                        }
+                    }
+                });
+                return new LongColumn(values, descending);
+            }
+
+            @Override
+            int compare(T object1, T object2) {
+                return IndexSorter.compareLong(key.getKey(object1), key.getKey(object2));
+            }
+        });
+        return this;
+    }
+
+    public SortKeyChain<T> thenDouble(DoubleKey<? super T> key) {
+        return thenDouble(key, false);
+    }
+
+    /**
+     * 値の順序は{@link Double#compare(double, double)}に従う。
+     */
+    public SortKeyChain<T> thenDouble(final DoubleKey<? super T> key, boolean descending) {
+        mKeys.add(new KeySpec<T>(descending) {
+            @Override
+            Column extract(final List<? extends T> list, ExecutorService executor) {
+                final double[] values = new double[list.size()];
+                IndexSorter.forEachRange(values.length, executor, new IndexSorter.RangeTask() {
+                    public void run(int from, int to) {
+                        for (int i = from; i < to; i++) {
+                            values[i] = key.getKey(list.get(i));
+                        }
+                    }
+                });
+                return new DoubleColumn(values, descending);
+            }
+
+            @Override
+            int compare(T object1, T object2) {
+                return Double.compare(key.getKey(object1), key.getKey(object2));
+            }
+        });
+        return this;
+    }
+
+    public SortKeyChain<T> thenString(StringKey<? super T> key) {
+        return thenString(key, false);
+    }
+
+    public SortKeyChain<T> thenString(final StringKey<? super T> key, boolean descending) {
+        mKeys.add(new KeySpec<T>(descending) {
+            @Override
+            Column extract(final List<? extends T> list, ExecutorService executor) {
+                final String[] values = new String[list.size()];
+                IndexSorter.forEachRange(values.length, executor, new IndexSorter.RangeTask() {
+                    public void run(int from, int to) {
+                        for (int i = from; i < to; i++) {
+                            values[i] = key.getKey(list.get(i));
+                        }
+                    }
+                });
+                return new StringColumn(values, descending);
+            }
+
+            @Override
+            int compare(T object1, T object2) {
+                return StringColumn.compare(key.getKey(object1), key.getKey(object2));
+            }
+        });
+        return this;
+    }
+
+    /**
+     * @see #sortedPermutation(List, ExecutorService)
+     */
+    public int[] sortedPermutation(List<? extends T> list) {
+        return sortedPermutation(list, null);
+    }
+
+    /**
+     * {@code list}をこの順序で安定ソートしたときの順列を返す。
+     * i番目の要素は、ソート後にi番目に来る要素の{@code list}内での添字。
+     *
+     * @param executor
+     *            null可。 与えられれば要素数の多いときにキーの取り出しとソートを並列に行う。
+     *            キーを取り出す関数は複数のスレッドから呼ばれることになる
+     */
+    public int[] sortedPermutation(List<? extends T> list, ExecutorService executor) {
+        int[] perm = IndexSorter.identity(list.size());
+        if (mKeys.isEmpty()) return perm;
+        IndexSorter.sort(perm, comparator(extractColumns(list, executor)), executor);
+        return perm;
+    }
+
+    /**
+     * {@code list}をこの順序で安定ソートする。
+     *
+     * @see #sortedPermutation(List, ExecutorService)
+     */
+    public void sort(List<T> list, ExecutorService executor) {
+        int[] perm = sortedPermutation(list, executor);
+        List<T> sorted = new ArrayList<T>(perm.length);
+        for (int index : perm) {
+            sorted.add(list.get(index));
+        }
+        for (int i = 0; i < perm.length; i++) {
+            list.set(i, sorted.get(i));
+        }
+    }
+
+    /**
+     * @return 比較のたびにキーを取り出す比較関数。 {@link java.util.TreeMap}など、
+     *         キーを事前に取り出せないところで使う
+     */
+    public Comparator<T> toComparator() {
+        return new Comparator<T>() {
+            public int compare(T object1, T object2) {
+                for (int i = 0, n = mKeys.size(); i < n; i++) {
+                    KeySpec<T> key = mKeys.get(i);
+                    int ret = key.compare(object1, object2);
+                    if (ret != 0) return key.descending ? -ret : ret;
+                }
+                return 0;
+            }
+        };
+    }
+
+    Column[] extractColumns(List<? extends T> list, ExecutorService executor) {
+        Column[] ret = new Column[mKeys.size()];
+        for (int i = 0; i < ret.length; i++) {
+            ret[i] = mKeys.get(i).extract(list, executor);
+        }
+        return ret;
+    }
+
+    /**
+     * @param columns
+     *            1つ以上
+     */
+    static IndexSorter.IndexComparator comparator(final Column[] columns) {
+        if (columns.length == 1) return columns[0];
+        return new IndexSorter.IndexComparator() {
+            public int compare(int index1, int index2) {
+                for (int i = 0; i < columns.length; i++) {
+                    int ret = columns[i].compare(index1, index2);
+                    if (ret != 0) return ret;
+                }
+                return 0;
+            }
+        };
+    }
+
+    /**
+     * キーの取り出し方と昇順・降順
+     */
+    static abstract class KeySpec<T> {
+        final boolean descending;
+
+        KeySpec(boolean descending) {
+            this.descending = descending;
+        }
+
+        abstract Column extract(List<? extends T> list, ExecutorService executor);
+
+        /**
+         * @return 昇順での比較結果
+         */
+        abstract int compare(T object1, T object2);
+    }
+
+    /**
+     * 取り出したキーの配列。 添字同士で比較する
+     */
+    static abstract class Column implements IndexSorter.IndexComparator {
+        final boolean descending;
+
+        Column(boolean descending) {
+            this.descending = descending;
+        }
+    }
+
+    static final class IntColumn extends Column {
+        final int[] values;
+
+        IntColumn(int[] values, boolean descending) {
+            super(descending);
+            this.values = values;
+        }
+
+        public int compare(int index1, int index2) {
+            int ret = IndexSorter.compareInt(values[index1], values[index2]);
+            return descending ? -ret : ret;
+        }
+    }
+
+    static final class LongColumn extends Column {
+        final long[] values;
+
+        LongColumn(long[] values, boolean descending) {
+            super(descending);
+            this.values = values;
+        }
+
+        public int compare(int index1, int index2) {
+            int ret = IndexSorter.compareLong(values[index1], values[index2]);
+            return descending ? -ret : ret;
+        }
+    }
+
+    static final class DoubleColumn extends Column {
+        final double[] values;
+
+        DoubleColumn(double[] values, boolean descending) {
+            super(descending);
+            this.values = values;
+        }
+
+        public int compare(int index1, int index2) {
+            int ret = Double.compare(values[index1], values[index2]);
+            return descending ? -ret : ret;
+        }
+    }
+
+    static final class StringColumn extends Column {
+        final String[] values;
+
+        StringColumn(String[] values, boolean descending) {
+            super(descending);
+            this.values = values;
+        }
+
+        public int compare(int index1, int index2) {
+            int ret = compare(values[index1], values[index2]);
+            return descending ? -ret : ret;
+        }
+
+        static int compare(String value1, String value2) {
+            if (value1 == null || value2 == null) {
+                return value1 == value2 ? 0 : value1 == null ? -1 : 1;
+            }
+            return value1.compareTo(value2);
+        }
+    }
+
+}
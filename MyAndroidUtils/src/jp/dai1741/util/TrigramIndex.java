@@ -0,0 +1,342 @@
+package jp.dai1741.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * ファイル名の部分文字列検索に使う3文字組の索引。
+ * <p>
+ * ファイル名に含まれる連続した3文字ごとに、その3文字を含むファイルの番号の列を持つ。
+ * 検索では問い合わせに含まれる3文字組の列の共通部分を求め、候補だけを実際の名前と照合するので、
+ * 全てのファイル名を走査しない。 2文字以下の問い合わせは全件を走査する。
+ * 大文字と小文字は区別しない。
+ * </p>
+ * <p>
+ * ファイルの追加と削除は索引を作り直さずに反映できる。 削除したファイルの番号は列に残り、
+ * 削除が登録数の半分を超えたときにまとめて詰め直す。
+ * このクラスはスレッドセーフでない。
+ * </p>
+ *
+ * @author dai
+ * @see FileIterator#walk(File, java.io.FileFilter, Comparator, int)
+ */
+public final class TrigramIndex {
+
+    private static final int MAGIC = 0x46495458;
+    private static final int VERSION = 1;
+
+    /** 番号ごとのファイル。 削除したものはnull */
+    private ArrayList<File> mFiles = new ArrayList<File>();
+    private int mRemovedCount;
+    private HashMap<Long, Postings> mPostings = new HashMap<Long, Postings>();
+
+    public TrigramIndex() {
+    }
+
+    /**
+     * @return {@code files}の全てを登録した索引
+     */
+    public static TrigramIndex of(List<File> files) {
+        TrigramIndex ret = new TrigramIndex();
+        for (File file : files) {
+            ret.add(file);
+        }
+        return ret;
+    }
+
+    /**
+     * 登録済みかは調べないので、同じファイルを2度追加すると検索結果に2度現れる。
+     */
+    public void add(File file) {
+        int id = mFiles.size();
+        mFiles.add(file);
+        for (long trigram : trigrams(file.getName())) {
+            Postings postings = mPostings.get(trigram);
+            if (postings == null) {
+                postings = new Postings(2);
+                mPostings.put(trigram, postings);
+            }
+            postings.add(id);
+        }
+    }
+
+    /**
+     * @return 削除したか。 登録されていなければfalse
+     */
+    public boolean remove(File file) {
+        int[] candidates = candidates(lowerCase(file.getName()));
+        int n = candidates != null ? candidates.length : mFiles.size();
+        for (int i = 0; i < n; i++) {
+            int id = candidates != null ? candidates[i] : i;
+            if (file.equals(mFiles.get(id))) {
+                mFiles.set(id, null);
+                if (++mRemovedCount > mFiles.size() / 2) compact();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int size() {
+        return mFiles.size() - mRemovedCount;
+    }
+
+    /**
+     * 名前に{@code query}を含むファイルを、{@code comparator}の順に返す。
+     *
+     * @param comparator
+     *            null可。 nullなら自然順序
+     */
+    public FileIterator search(String query, Comparator<File> comparator) {
+        return FileIterator.of(find(query), comparator);
+    }
+
+    /**
+     * 名前に{@code query}を含むファイルを、{@code it}と同じ比較関数の順に返す。
+     */
+    public FileIterator search(String query, FileIterator it) {
+        return search(query, it.getComparator());
+    }
+
+    /**
+     * @return 名前に{@code query}を含むファイル。 登録順
+     */
+    public List<File> find(String query) {
+        String lower = lowerCase(query);
+        int[] candidates = candidates(lower);
+        int n = candidates != null ? candidates.length : mFiles.size();
+        List<File> ret = new ArrayList<File>();
+        for (int i = 0; i < n; i++) {
+            File file = mFiles.get(candidates != null ? candidates[i] : i);
+            if (file != null && containsIgnoreCase(file.getName(), lower)) ret.add(file);
+        }
+        return ret;
+    }
+
+    /**
+     * @return {@code lower}の3文字組を全て含むファイルの番号の昇順。
+     *         3文字組を作れないほど短ければnull
+     */
+    private int[] candidates(String lower) {
+        Set<Long> trigrams = trigrams(lower);
+        if (trigrams.isEmpty()) return null;
+
+        Postings[] lists = new Postings[trigrams.size()];
+        int k = 0;
+        for (long trigram : trigrams) {
+            Postings postings = mPostings.get(trigram);
+            if (postings == null) return new int[0];
+            lists[k++] = postings;
+        }
+        // 短い列から共通部分を取ると、途中の結果が小さく済む
+        Arrays.sort(lists, new Comparator<Postings>() {
+            public int compare(Postings object1, Postings object2) {
+                return object1.size - object2.size;
+            }
+        });
+
+        int[] ret = new int[lists[0].size];
+        System.arraycopy(lists[0].ids, 0, ret, 0, ret.length);
+        int n = ret.length;
+        for (int i = 1; i < lists.length && n > 0; i++) {
+            n = intersect(ret, n, lists[i]);
+        }
+        if (n == ret.length) return ret;
+        int[] trimmed = new int[n];
+        System.arraycopy(ret, 0, trimmed, 0, n);
+        return trimmed;
+    }
+
+    /**
+     * {@code ids}の先頭{@code n}個のうち{@code postings}にも含まれるものを前に詰める。
+     *
+     * @return 残った個数
+     */
+    private static int intersect(int[] ids, int n, Postings postings) {
+        int[] other = postings.ids;
+        int m = postings.size;
+        int count = 0;
+        for (int i = 0, j = 0; i < n && j < m;) {
+            if (ids[i] < other[j]) i++;
+            else if (ids[i] > other[j]) j++;
+            else {
+                ids[count++] = ids[i];
+                i++;
+                j++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 削除したファイルを取り除き、番号を詰め直す。
+     */
+    public void compact() {
+        ArrayList<File> files = mFiles;
+        mFiles = new ArrayList<File>(files.size() - mRemovedCount);
+        mPostings = new HashMap<Long, Postings>();
+        mRemovedCount = 0;
+        for (File file : files) {
+            if (file != null) add(file);
+        }
+    }
+
+    /**
+     * 削除したファイルを詰め直してから書き出す。
+     */
+    public void save(File file) throws IOException {
+        if (mRemovedCount > 0) compact();
+        // 書き込み中に落ちても元のファイルが残るよう、一時ファイルに書いてから置き換える
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmp), 8 * 1024));
+        boolean written = false;
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(mFiles.size());
+            for (File f : mFiles) {
+                out.writeUTF(f.getPath());
+            }
+            out.writeInt(mPostings.size());
+            for (Map.Entry<Long, Postings> entry : mPostings.entrySet()) {
+                Postings postings = entry.getValue();
+                out.writeLong(entry.getKey());
+                out.writeInt(postings.size);
+                for (int i = 0; i < postings.size; i++) {
+                    out.writeInt(postings.ids[i]);
+                }
+            }
+            out.close();
+            written = true;
+        }
+        finally {
+            if (!written) {
+                out.close();
+                tmp.delete();
+            }
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("failed to rename " + tmp + " to " + file);
+        }
+    }
+
+    /**
+     * {@link #save(File)}で書き出した索引を読み込む。
+     *
+     * @throws IOException
+     *             読み込みに失敗したか、形式が正しくないとき
+     */
+    public static TrigramIndex load(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(
+                file), 8 * 1024));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) throw new IOException(
+                    "unknown format: " + file);
+            TrigramIndex ret = new TrigramIndex();
+            int fileCount = in.readInt();
+            ret.mFiles.ensureCapacity(fileCount);
+            for (int i = 0; i < fileCount; i++) {
+                ret.mFiles.add(new File(in.readUTF()));
+            }
+            int trigramCount = in.readInt();
+            for (int i = 0; i < trigramCount; i++) {
+                long trigram = in.readLong();
+                int size = in.readInt();
+                if (size < 0 || size > fileCount) throw new IOException("broken index: "
+                        + file);
+                Postings postings = new Postings(size);
+                int previous = -1;
+                for (int j = 0; j < size; j++) {
+                    // 積集合を求めるときに昇順であることを前提にしている
+                    int id = in.readInt();
+                    if (id <= previous || id >= fileCount) throw new IOException(
+                            "broken index: " + file);
+                    postings.add(id);
+                    previous = id;
+                }
+                ret.mPostings.put(trigram, postings);
+            }
+            return ret;
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return 連続した3文字を16ビットずつ詰めた値の集合
+     */
+    private static Set<Long> trigrams(String name) {
+        Set<Long> ret = new HashSet<Long>(Math.max(name.length() * 2, 4));
+        for (int i = 0; i + 3 <= name.length(); i++) {
+            long c0 = Character.toLowerCase(name.charAt(i));
+            long c1 = Character.toLowerCase(name.charAt(i + 1));
+            long c2 = Character.toLowerCase(name.charAt(i + 2));
+            ret.add(c0 << 32 | c1 << 16 | c2);
+        }
+        return ret;
+    }
+
+    /**
+     * 文字列を作らずに{@code lowerCase(s).contains(lower)}と同じ結果を返す。
+     */
+    private static boolean containsIgnoreCase(String s, String lower) {
+        int last = s.length() - lower.length();
+        outer: for (int i = 0; i <= last; i++) {
+            for (int j = 0; j < lower.length(); j++) {
+                if (Character.toLowerCase(s.charAt(i + j)) != lower.charAt(j)) continue outer;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 1文字ずつ小文字にする。 {@link String#toLowerCase()}と違い、長さが変わらない。
+     */
+    private static String lowerCase(String s) {
+        char[] chars = s.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = Character.toLowerCase(chars[i]);
+        }
+        return new String(chars);
+    }
+
+    /**
+     * 昇順のファイル番号の列
+     */
+    private static final class Postings {
+        int[] ids;
+        int size;
+
+        Postings(int capacity) {
+            ids = new int[Math.max(capacity, 1)];
+        }
+
+        void add(int id) {
+            if (size == ids.length) {
+                int[] newIds = new int[size + (size >> 1) + 1];
+                System.arraycopy(ids, 0, newIds, 0, size);
+                ids = newIds;
+            }
+            ids[size++] = id;
+        }
+    }
+
+}
@@ -0,0 +1,177 @@
+package jp.dai1741.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * 複数の{@link Validator}をまとめ、要素の集合をまとめて評価するクラス。
+ * <p>
+ * 各要素は追加した順に評価し、最初に不合格となったところで残りを評価しない。
+ * 不合格は文字列ではなく、要素の添字と{@link #add(Validator, int)}で与えたコードの組で記録する。
+ * エラー文字列は{@link Result#getMessage(int)}で読まれたものだけを、その時点で作る。
+ * </p>
+ * <p>
+ * このクラス自体も{@code Validator}なので、さらに別のエンジンに組み込める。
+ * 評価器を追加するメソッドはこのインスタンス自身を返す。 追加し終えたインスタンスは複数のスレッドから使える。
+ * </p>
+ *
+ * @author dai
+ * @param <E>
+ *            評価対象の型
+ */
+public final class ValidationEngine<E> implements Validator<E> {
+
+    private final List<Validator<? super E>> mValidators = new ArrayList<Validator<? super E>>();
+    private int[] mCodes = new int[0];
+
+    public ValidationEngine() {
+    }
+
+    /**
+     * @param code
+     *            この評価器で不合格になったときに記録するコード
+     */
+    public ValidationEngine<E> add(Validator<? super E> validator, int code) {
+        if (validator == null) throw new NullPointerException("validator must be specified");
+        mValidators.add(validator);
+        int[] codes = new int[mCodes.length + 1];
+        System.arraycopy(mCodes, 0, codes, 0, mCodes.length);
+        codes[mCodes.length] = code;
+        mCodes = codes;
+        return this;
+    }
+
+    /**
+     * 文字列を作らずに評価する。
+     */
+    public boolean validate(E e) {
+        return firstFailure(e) < 0;
+    }
+
+    /**
+     * @return 最初に不合格となった評価器のエラー文字列。 合格ならnull
+     */
+    public String validateAndGetErrorString(E e) {
+        int failure = firstFailure(e);
+        return failure >= 0 ? mValidators.get(failure).validateAndGetErrorString(e) : null;
+    }
+
+    /**
+     * @return 最初に不合格となった評価器の番号。 合格なら-1
+     */
+    private int firstFailure(E e) {
+        for (int i = 0, n = mValidators.size(); i < n; i++) {
+            if (!mValidators.get(i).validate(e)) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @return 最初に不合格となった要素の添字。 全て合格なら-1
+     */
+    public int indexOfFirstFailure(List<? extends E> elements) {
+        for (int i = 0; i < elements.size(); i++) {
+            if (firstFailure(elements.get(i)) >= 0) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @see #check(List, ExecutorService)
+     */
+    public Result<E> check(List<? extends E> elements) {
+        return check(elements, null);
+    }
+
+    /**
+     * 全ての要素を評価する。
+     *
+     * @param elements
+     *            結果のエラー文字列を読み終えるまで変更してはならない
+     * @param executor
+     *            null可。 与えられれば要素数の多いときに区間ごとに並列に評価する。
+     *            評価器は複数のスレッドから呼ばれることになる
+     */
+    public Result<E> check(final List<? extends E> elements, ExecutorService executor) {
+        // 要素ごとに不合格となった評価器の番号+1を書く。 区間ごとに書く場所が分かれるので同期しない
+        final int[] failures = new int[elements.size()];
+        IndexSorter.forEachRange(failures.length, executor, new IndexSorter.RangeTask() {
+            public void run(int from, int to) {
+                for (int i = from; i < to; i++) {
+                    failures[i] = firstFailure(elements.get(i)) + 1;
+                }
+            }
+        });
+
+        int count = 0;
+        for (int failure : failures) {
+            if (failure != 0) count++;
+        }
+        int[] indices = new int[count];
+        int[] validatorIndices = new int[count];
+        for (int i = 0, j = 0; i < failures.length; i++) {
+            if (failures[i] == 0) continue;
+            indices[j] = i;
+            validatorIndices[j++] = failures[i] - 1;
+        }
+        return new Result<E>(this, elements, indices, validatorIndices);
+    }
+
+    /**
+     * {@link ValidationEngine#check(List, ExecutorService)}の結果。 不合格の要素を添字の順に持つ。
+     */
+    public static final class Result<E> {
+        private final ValidationEngine<E> mEngine;
+        private final List<? extends E> mElements;
+        private final int[] mIndices;
+        private final int[] mValidatorIndices;
+
+        Result(ValidationEngine<E> engine, List<? extends E> elements, int[] indices,
+                int[] validatorIndices) {
+            mEngine = engine;
+            mElements = elements;
+            mIndices = indices;
+            mValidatorIndices = validatorIndices;
+        }
+
+        public boolean isValid() {
+            return mIndices.length == 0;
+        }
+
+        public int getFailureCount() {
+            return mIndices.length;
+        }
+
+        /**
+         * @return {@code failure}番目の不合格の要素の添字
+         */
+        public int getIndex(int failure) {
+            return mIndices[failure];
+        }
+
+        /**
+         * @return {@code failure}番目の不合格のコード
+         */
+        public int getCode(int failure) {
+            return mEngine.mCodes[mValidatorIndices[failure]];
+        }
+
+        /**
+         * @return 不合格の要素の添字。 昇順
+         */
+        public int[] getIndices() {
+            return mIndices.clone();
+        }
+
+        /**
+         * {@code failure}番目の不合格のエラー文字列を、不合格となった評価器に作らせる。
+         * 結果はキャッシュしない。
+         */
+        public String getMessage(int failure) {
+            return mEngine.mValidators.get(mValidatorIndices[failure])
+                    .validateAndGetErrorString(mElements.get(mIndices[failure]));
+        }
+    }
+
+}